@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import android.os.Build;
+import android.os.MemoryFile;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Packs small pieces of generated code into shared executable pages, see {@link
+ * ElfLoader#allocateStub(byte[])}. Stubs are allocated in 16-byte granules, first fit; a stub
+ * larger than a page gets pages of its own. The loader's call stub is installed into pages of
+ * its own, the arm64 instruction cache flush routine is the first stub allocated.
+ *
+ * <p>Like ART's JIT code cache, each region is a memory file mapped twice: code is written
+ * through a read-write view and runs from a read-execute view, so no page is ever writable and
+ * executable at once. If no memory file can be mapped, a region is mapped read-write, filled
+ * once and sealed read-execute; nothing is written into a sealed region again.
+ */
+final class CodeCache {
+    private static final int GRANULE = 16;
+    private static final int PROT_READ = 0x1;
+    private static final int PROT_WRITE = 0x2;
+    private static final int PROT_EXEC = 0x4;
+    private static final int MAP_SHARED = 0x1;
+    private static final int MFD_CLOEXEC = 0x1;
+
+    private final ElfLoader loader;
+    private final int pageSize = ElfLoader.theUnsafe.pageSize();
+    private final ArrayList<Region> regions = new ArrayList<>();
+    private final HashMap<Long, Integer> allocations = new HashMap<>();
+    private boolean dualMapping = true;
+    private long mprotect;
+
+    CodeCache(ElfLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Copies {@code length} bytes of machine code from the primitive array {@code code} into
+     * the cache and returns the executable address of the copy.
+     */
+    synchronized long allocate(Object code, int length) throws ErrnoException {
+        var address = place(length, false);
+        var region = regionOf(address);
+        allocations.put(address, (length + GRANULE - 1) / GRANULE);
+        try {
+            ElfLoader.copyMemory(code, region.writable + (address - region.address), length);
+            if (region.writable == region.address) {
+                seal(region);
+            } else if (region.live) {
+                // Pages nothing ran from yet are synced by the kernel on their first execution
+                loader.flushInstructionCache(address, address + length);
+            }
+        } catch (ErrnoException | RuntimeException e) {
+            free(address);
+            throw e;
+        }
+        region.live = true;
+        return address;
+    }
+
+    /**
+     * Copies the loader's call stub, {@code length} bytes at {@code source}, into pages of its
+     * own before the loader can call native code. Nothing is packed next to it, as flushing the
+     * instruction cache on arm64 takes a stub allocated afterwards. A region that could only be
+     * mapped once stays writable until {@link #seal()} is called.
+     */
+    synchronized long install(long source, int length) throws ErrnoException {
+        var address = place((length + pageSize - 1) / pageSize * pageSize, true);
+        var region = regionOf(address);
+        // Fresh pages, the kernel syncs the instruction cache when they are first executed
+        ElfLoader.theUnsafe.copyMemory(
+                source, region.writable + (address - region.address), length);
+        region.live = true;
+        return address;
+    }
+
+    /** Seals the regions {@link #install(long, int)} had to leave writable. */
+    synchronized void seal() throws ErrnoException {
+        for (var region : regions) {
+            if (region.writable == region.address && !region.sealed) seal(region);
+        }
+    }
+
+    /** Releases a stub returned by {@link #allocate(Object, int)}. */
+    synchronized void free(long address) {
+        var granules = allocations.remove(address);
+        if (granules == null) {
+            throw new IllegalArgumentException("Not a stub: 0x" + Long.toHexString(address));
+        }
+        var region = regionOf(address);
+        region.mark((int) ((address - region.address) / GRANULE), granules, false);
+        // Keep one empty page around for the next stub
+        if (region.free == region.granules
+                && (region.sealed || region.size > pageSize || regions.size() > 1)) {
+            regions.remove(region);
+            unmap(region);
+        }
+    }
+
+    /** Unmaps all pages; every stub becomes invalid. */
+    synchronized void release() {
+        for (var region : regions) unmap(region);
+        regions.clear();
+        allocations.clear();
+    }
+
+    /** Reserves {@code length} bytes and returns their executable address. */
+    private long place(int length, boolean fresh) throws ErrnoException {
+        if (length <= 0) throw new IllegalArgumentException("Bad length: " + length);
+        var granules = (length + GRANULE - 1) / GRANULE;
+
+        Region region = null;
+        var index = -1;
+        if (!fresh) {
+            for (var r : regions) {
+                if (r.sealed || granules > r.free) continue;
+                index = r.find(granules);
+                if (index >= 0) {
+                    region = r;
+                    break;
+                }
+            }
+        }
+        if (region == null) {
+            region = map((granules * GRANULE + pageSize - 1) / pageSize * pageSize, fresh);
+            regions.add(region);
+            index = 0;
+        }
+
+        region.mark(index, granules, true);
+        return region.address + (long) index * GRANULE;
+    }
+
+    private Region regionOf(long address) {
+        for (var region : regions) {
+            if (address >= region.address && address < region.address + region.size) {
+                return region;
+            }
+        }
+        throw new IllegalStateException("Not in the cache: 0x" + Long.toHexString(address));
+    }
+
+    private Region map(int size, boolean bootstrap) throws ErrnoException {
+        if (dualMapping) {
+            try {
+                var region = mapDual(size);
+                if (region != null) return region;
+            } catch (ErrnoException | IOException | ReflectiveOperationException ignored) {
+            }
+            dualMapping = false;
+        }
+        // The loader's stubs cannot seal their own page before they run
+        var prot = PROT_READ | PROT_WRITE | (bootstrap ? PROT_EXEC : 0);
+        var address = Os.mmap(0, size, prot, 0x22, FileDescriptor.in, 0);
+        return new Region(address, address, size);
+    }
+
+    private static Region mapDual(int size)
+            throws ErrnoException, IOException, ReflectiveOperationException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            var fd = Os.memfd_create("elfloader-code", MFD_CLOEXEC);
+            try {
+                Os.ftruncate(fd, size);
+                return mapViews(fd, size);
+            } finally {
+                Os.close(fd);
+            }
+        }
+        // Before R libcore has no memfd_create; ashmem behind MemoryFile maps executable too
+        var file = new MemoryFile("elfloader-code", size);
+        try {
+            var fd = (FileDescriptor) MemoryFile.class.getMethod("getFileDescriptor").invoke(file);
+            return fd == null ? null : mapViews(fd, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static Region mapViews(FileDescriptor fd, int size) throws ErrnoException {
+        var writable = Os.mmap(0, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+        try {
+            var address = Os.mmap(0, size, PROT_READ | PROT_EXEC, MAP_SHARED, fd, 0);
+            return new Region(address, writable, size);
+        } catch (ErrnoException e) {
+            Os.munmap(writable, size);
+            throw e;
+        }
+    }
+
+    private static void unmap(Region region) {
+        try {
+            Os.munmap(region.address, region.size);
+            if (region.writable != region.address) Os.munmap(region.writable, region.size);
+        } catch (ErrnoException ignored) {
+        }
+    }
+
+    private void seal(Region region) throws ErrnoException {
+        if (mprotect == 0) {
+            mprotect = loader.getLibcSymbol("mprotect");
+            if (mprotect == 0) {
+                throw new UnsupportedOperationException("mprotect not found in libc.so");
+            }
+        }
+        if ((int) loader.callFunction(mprotect, region.address, region.size, PROT_READ | PROT_EXEC)
+                != 0) {
+            var errno = loader.getLibcSymbol("__errno");
+            throw new ErrnoException(
+                    "mprotect",
+                    errno == 0 ? 0 : ElfLoader.theUnsafe.getInt(loader.callFunction(errno)));
+        }
+        region.sealed = true;
+    }
+
+    private static final class Region {
+        final long address;
+        final long writable;
+        final int size;
+        final int granules;
+        final long[] used;
+        int free;
+        boolean sealed;
+        boolean live;
+
+        Region(long address, long writable, int size) {
+            this.address = address;
+            this.writable = writable;
+            this.size = size;
+            granules = free = size / GRANULE;
+            used = new long[(granules + 63) / 64];
+        }
+
+        int find(int count) {
+            var run = 0;
+            for (var i = 0; granules > i; i++) {
+                if ((used[i >>> 6] & 1L << i) != 0) {
+                    run = 0;
+                } else if (++run == count) {
+                    return i - count + 1;
+                }
+            }
+            return -1;
+        }
+
+        void mark(int index, int count, boolean inUse) {
+            for (var i = index; index + count > i; i++) {
+                if (inUse) {
+                    used[i >>> 6] |= 1L << i;
+                } else {
+                    used[i >>> 6] &= ~(1L << i);
+                }
+            }
+            free += inUse ? -count : count;
+        }
+    }
+}
@@ -0,0 +1,958 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.util.ArrayList;
+
+/**
+ * Demangler for the Itanium C++ ABI name mangling used by the Android toolchains. The output
+ * follows the layout of GNU {@code c++filt}, e.g. {@code art::ArtMethod::Invoke(art::Thread*,
+ * unsigned int*, unsigned int, art::JValue*, char const*)}.
+ *
+ * <p>Template arguments given as expressions are not supported; such symbols fail to demangle.
+ */
+public final class Demangler {
+    // Deeper nesting is rejected instead of overflowing the stack, Android threads have small ones
+    private static final int MAX_DEPTH = 256;
+
+    private static final String[] OPERATORS = {
+        "nw", "new", "na", "new[]", "dl", "delete", "da", "delete[]", "ps", "+", "ng", "-",
+        "ad", "&", "de", "*", "co", "~", "pl", "+", "mi", "-", "ml", "*", "dv", "/", "rm", "%",
+        "an", "&", "or", "|", "eo", "^", "aS", "=", "pL", "+=", "mI", "-=", "mL", "*=", "dV", "/=",
+        "rM", "%=", "aN", "&=", "oR", "|=", "eO", "^=", "ls", "<<", "rs", ">>", "lS", "<<=",
+        "rS", ">>=", "eq", "==", "ne", "!=", "lt", "<", "gt", ">", "le", "<=", "ge", ">=",
+        "ss", "<=>", "nt", "!", "aa", "&&", "oo", "||", "pp", "++", "mm", "--", "cm", ",",
+        "pm", "->*", "pt", "->", "cl", "()", "ix", "[]", "qu", "?", "aw", "co_await",
+    };
+
+    private final String symbol;
+    private int pos;
+    private final ArrayList<Node> substitutions = new ArrayList<>();
+    private ArrayList<Node> templateArgs = new ArrayList<>();
+
+    /** Whether template parameters are parsed as part of a {@code Dp} pattern. */
+    private boolean expanding;
+
+    /** The first parameter pack the pattern refers to, and which element of it is wanted. */
+    private Node expansionPack;
+
+    private int expansionIndex = -1;
+
+    /** The qualified name of the outermost entity, e.g. {@code art::ArtMethod::Invoke}. */
+    private String name;
+
+    /** The qualified name with parameters and qualifiers, but without the return type. */
+    private String signature;
+
+    private String full;
+
+    /** How deeply types, encodings and template arguments are nested at {@link #pos}. */
+    private int depth;
+
+    private Demangler(String symbol, int start) {
+        this.symbol = symbol;
+        pos = start;
+    }
+
+    /**
+     * Returns the demangled form of {@code symbol}, or null if it is not a mangled C++ name or
+     * could not be demangled. The {@code __dl_} prefix of symbols in old linkers is ignored.
+     */
+    public static String demangle(String symbol) {
+        var demangler = parse(symbol);
+        return demangler == null ? null : demangler.toString();
+    }
+
+    /**
+     * Demangles {@code symbol} into {@code {qualified name, signature}}, or returns null. The
+     * signature has no return type so that it can be matched without knowing it. Both carry the
+     * clone suffix, if any, so that a clone is never mistaken for the function itself.
+     */
+    static String[] demangleName(String symbol) {
+        var demangler = parse(symbol);
+        return demangler == null ? null : new String[] {demangler.name, demangler.signature};
+    }
+
+    private static Demangler parse(String symbol) {
+        var start = symbol.startsWith("_Z") ? 2 : symbol.startsWith("__dl__Z") ? 7 : -1;
+        if (start < 0) return null;
+        var demangler = new Demangler(symbol, start);
+        try {
+            var encoding = demangler.parseEncoding(true);
+            demangler.full = encoding.toString();
+            // Clone suffixes such as .cold or .isra.0
+            while (demangler.pos < symbol.length() && symbol.charAt(demangler.pos) == '.') {
+                var end = demangler.pos + 1;
+                while (end < symbol.length() && isCloneChar(symbol.charAt(end))) end++;
+                while (end + 1 < symbol.length()
+                        && symbol.charAt(end) == '.'
+                        && Character.isDigit(symbol.charAt(end + 1))) {
+                    end += 2;
+                    while (end < symbol.length() && Character.isDigit(symbol.charAt(end))) end++;
+                }
+                var clone = " [clone " + symbol.substring(demangler.pos, end) + ']';
+                demangler.full += clone;
+                demangler.name += clone;
+                demangler.signature += clone;
+                demangler.pos = end;
+            }
+            if (demangler.pos != symbol.length()) return null;
+            return demangler;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static boolean isCloneChar(char c) {
+        return c == '_' || (c >= 'a' && c <= 'z');
+    }
+
+    @Override
+    public String toString() {
+        return full;
+    }
+
+    private char peek() {
+        return pos < symbol.length() ? symbol.charAt(pos) : 0;
+    }
+
+    private char peek(int offset) {
+        return pos + offset < symbol.length() ? symbol.charAt(pos + offset) : 0;
+    }
+
+    private boolean consume(char c) {
+        if (peek() != c) return false;
+        pos++;
+        return true;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) throw new IllegalArgumentException();
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) throw new IllegalArgumentException("Nested too deeply");
+    }
+
+    private Node leave(Node node) {
+        depth--;
+        return node;
+    }
+
+    private boolean atEnd() {
+        return pos >= symbol.length() || peek() == 'E' || peek() == '.';
+    }
+
+    private int parseNumber() {
+        var negative = consume('n');
+        var start = pos;
+        while (Character.isDigit(peek())) pos++;
+        if (start == pos) throw new IllegalArgumentException();
+        var value = Integer.parseInt(symbol.substring(start, pos));
+        return negative ? -value : value;
+    }
+
+    private Node parseEncoding(boolean outermost) {
+        return parseEncoding(outermost, true);
+    }
+
+    // <encoding> ::= <name> <bare-function-type> | <name> | <special-name>
+    private Node parseEncoding(boolean outermost, boolean withReturnType) {
+        enter();
+        if (peek() == 'T' || peek() == 'G') {
+            var special = parseSpecialName();
+            if (outermost) name = signature = special.toString();
+            return leave(special);
+        }
+
+        var state = new NameState();
+        state.outermost = true;
+        var entity = parseName(state);
+        if (outermost) name = entity.toString();
+        if (atEnd()) {
+            if (outermost) signature = name;
+            return leave(entity);
+        }
+
+        Node returnType = null;
+        if (state.templateArgs && !state.ctorDtorConversion) {
+            returnType = parseType();
+        }
+        var params = parseBareFunctionType();
+        var text = entity + params + state.qualifiers;
+        if (outermost) signature = text;
+        var encoding = returnType == null || !withReturnType ? text : returnType + " " + text;
+        return leave(new Node(encoding));
+    }
+
+    private String parseBareFunctionType() {
+        var params = new StringBuilder("(");
+        if (peek() == 'v' && (peek(1) == 0 || peek(1) == 'E' || peek(1) == '.')) {
+            pos++;
+        } else {
+            while (!atEnd()) appendListItem(params, parseType());
+        }
+        return params.append(')').toString();
+    }
+
+    // <special-name> ::= TV <type> | TT <type> | TI <type> | TS <type> | Th/Tv/Tc ... | GV <name>
+    private Node parseSpecialName() {
+        var kind = symbol.substring(pos, pos + 2);
+        pos += 2;
+        switch (kind) {
+            case "TV":
+                return new Node("vtable for " + parseType());
+            case "TT":
+                return new Node("VTT for " + parseType());
+            case "TI":
+                return new Node("typeinfo for " + parseType());
+            case "TS":
+                return new Node("typeinfo name for " + parseType());
+            case "Th":
+                parseCallOffset('h');
+                return new Node("non-virtual thunk to " + parseEncoding(false));
+            case "Tv":
+                parseCallOffset('v');
+                return new Node("virtual thunk to " + parseEncoding(false));
+            case "Tc":
+                parseCallOffset(symbol.charAt(pos++));
+                parseCallOffset(symbol.charAt(pos++));
+                return new Node("covariant return thunk to " + parseEncoding(false));
+            case "TC":
+                {
+                    var type = parseType();
+                    parseNumber();
+                    expect('_');
+                    return new Node("construction vtable for " + parseType() + "-in-" + type);
+                }
+            case "TW":
+                return new Node("TLS wrapper function for " + parseName(new NameState()));
+            case "TH":
+                return new Node("TLS init function for " + parseName(new NameState()));
+            case "GV":
+                return new Node("guard variable for " + parseName(new NameState()));
+            case "GT":
+                {
+                    var prefix = symbol.charAt(pos++) == 'n' ? "non-transaction" : "transaction";
+                    return new Node(prefix + " clone for " + parseEncoding(false));
+                }
+            case "GR":
+                {
+                    var entity = parseName(new NameState());
+                    while (peek() != '_' && pos < symbol.length()) pos++;
+                    consume('_');
+                    return new Node("reference temporary for " + entity);
+                }
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private void parseCallOffset(char kind) {
+        if (kind == 'h') {
+            parseNumber();
+            expect('_');
+        } else if (kind == 'v') {
+            parseNumber();
+            expect('_');
+            parseNumber();
+            expect('_');
+        } else {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    // <name> ::= <nested-name> | <unscoped-name> | <unscoped-template-name> <template-args>
+    //        ::= <local-name>
+    private Node parseName(NameState state) {
+        var c = peek();
+        if (c == 'N') return parseNestedName(state);
+        if (c == 'Z') return parseLocalName(state);
+
+        Node result;
+        if (c == 'S' && peek(1) != 't') {
+            result = parseSubstitution();
+            if (peek() != 'I') throw new IllegalArgumentException();
+        } else {
+            var std = peek() == 'S';
+            if (std) pos += 2;
+            consume('L');
+            result = parseUnqualifiedName(null, state);
+            if (std) result = new Node("std::" + result, result.base);
+            if (peek() == 'I') substitutions.add(result);
+        }
+        if (peek() == 'I') {
+            result = withTemplateArgs(result, parseTemplateArgs(state.outermost));
+            state.templateArgs = true;
+        }
+        return result;
+    }
+
+    // <local-name> ::= Z <encoding> E <entity name> [<discriminator>] | Z <encoding> E s
+    private Node parseLocalName(NameState state) {
+        expect('Z');
+        var savedArgs = templateArgs;
+        // c++filt leaves out the return type of the enclosing function
+        var function = parseEncoding(false, false);
+        templateArgs = savedArgs;
+        expect('E');
+        Node entity;
+        if (consume('s')) {
+            entity = new Node(function + "::string literal");
+        } else {
+            if (consume('d')) {
+                if (peek() != '_') parseNumber();
+                expect('_');
+            }
+            var local = parseName(state);
+            entity = new Node(function + "::" + local, local.base);
+        }
+        if (consume('_')) {
+            if (consume('_')) {
+                parseNumber();
+                expect('_');
+            } else {
+                parseNumber();
+            }
+        }
+        return entity;
+    }
+
+    // <nested-name> ::= N [<CV-qualifiers>] [<ref-qualifier>] <prefix> <unqualified-name> E
+    private Node parseNestedName(NameState state) {
+        expect('N');
+        var qualifiers = new StringBuilder();
+        if (consume('r')) qualifiers.append(" __restrict");
+        if (consume('V')) qualifiers.append(" volatile");
+        if (consume('K')) qualifiers.insert(0, " const");
+        if (consume('R')) qualifiers.append(" &");
+        else if (consume('O')) qualifiers.append(" &&");
+        state.qualifiers = qualifiers.toString();
+
+        Node current = null;
+        var pushed = false;
+        while (!consume('E')) {
+            consume('L');
+            if (peek() == 'I') {
+                if (current == null) throw new IllegalArgumentException();
+                current = withTemplateArgs(current, parseTemplateArgs(state.outermost));
+                state.templateArgs = true;
+                substitutions.add(current);
+                pushed = true;
+                continue;
+            }
+            if (peek() == 'T') {
+                current = append(current, parseTemplateParam());
+                substitutions.add(current);
+                pushed = true;
+                continue;
+            }
+            if (peek() == 'S' && peek(1) == 't') {
+                pos += 2;
+                current = append(current, new Node("std"));
+                pushed = false;
+                continue;
+            }
+            if (peek() == 'S') {
+                current = append(current, parseSubstitution());
+                pushed = false;
+                continue;
+            }
+            if (peek() == 'M') {
+                // <data-member-prefix> of a closure in a default member initializer
+                pos++;
+                continue;
+            }
+            state.templateArgs = false;
+            state.ctorDtorConversion = false;
+            var component =
+                    parseUnqualifiedName(current == null ? null : current.base, state);
+            current = append(current, component);
+            substitutions.add(current);
+            pushed = true;
+        }
+        if (current == null) throw new IllegalArgumentException();
+        if (pushed) substitutions.remove(substitutions.size() - 1);
+        return current;
+    }
+
+    private static Node append(Node prefix, Node component) {
+        if (prefix == null) return component;
+        return new Node(prefix + "::" + component, component.base);
+    }
+
+    private static Node withTemplateArgs(Node name, String args) {
+        var text = name.toString();
+        // operator< <int> rather than operator<<int>
+        return new Node(text.endsWith("<") ? text + ' ' + args : text + args, name.base);
+    }
+
+    // <unqualified-name> ::= <operator-name> | <ctor-dtor-name> | <source-name>
+    //                    ::= <unnamed-type-name> [<abi-tags>]
+    private Node parseUnqualifiedName(String scope, NameState state) {
+        var c = peek();
+        Node result;
+        if (Character.isDigit(c)) {
+            result = parseSourceName();
+        } else if (c == 'C' && (Character.isDigit(peek(1)) || peek(1) == 'I')) {
+            if (scope == null) throw new IllegalArgumentException();
+            pos++;
+            if (consume('I')) {
+                pos++;
+                parseType();
+            } else {
+                pos++;
+            }
+            state.ctorDtorConversion = true;
+            result = new Node(scope, scope);
+        } else if (c == 'D' && Character.isDigit(peek(1))) {
+            if (scope == null) throw new IllegalArgumentException();
+            pos += 2;
+            state.ctorDtorConversion = true;
+            result = new Node("~" + scope, scope);
+        } else if (c == 'U') {
+            result = parseUnnamedTypeName();
+            // c++filt names the ctors and dtors of an unnamed type after the enclosing class
+            if (scope != null) result = new Node(result.toString(), scope);
+        } else if (Character.isLowerCase(c)) {
+            result = parseOperatorName(state);
+        } else {
+            throw new IllegalArgumentException();
+        }
+        while (consume('B')) {
+            var tag = parseSourceName();
+            result = new Node(result + "[abi:" + tag + ']', result.base);
+        }
+        return result;
+    }
+
+    private Node parseSourceName() {
+        var length = parseNumber();
+        if (length <= 0) throw new IllegalArgumentException();
+        var id = symbol.substring(pos, pos + length);
+        pos += length;
+        if (id.startsWith("_GLOBAL_") && id.length() > 9 && id.charAt(9) == 'N') {
+            id = "(anonymous namespace)";
+        }
+        return new Node(id, id);
+    }
+
+    private Node parseUnnamedTypeName() {
+        expect('U');
+        if (consume('t')) {
+            var index = peek() == '_' ? 1 : parseNumber() + 2;
+            expect('_');
+            var unnamed = "{unnamed type#" + index + '}';
+            return new Node(unnamed, unnamed);
+        }
+        expect('l');
+        var params = new StringBuilder("(");
+        if (peek() == 'v' && peek(1) == 'E') {
+            pos++;
+        } else {
+            while (peek() != 'E') appendListItem(params, parseType());
+        }
+        expect('E');
+        var index = peek() == '_' ? 1 : parseNumber() + 2;
+        expect('_');
+        var lambda = "{lambda" + params + ")#" + index + '}';
+        return new Node(lambda, lambda);
+    }
+
+    private Node parseOperatorName(NameState state) {
+        var code = symbol.substring(pos, pos + 2);
+        pos += 2;
+        if (code.equals("cv")) {
+            state.ctorDtorConversion = true;
+            var operator = "operator " + parseType();
+            return new Node(operator, operator);
+        }
+        if (code.equals("li")) {
+            var operator = "operator\"\" " + parseSourceName();
+            return new Node(operator, operator);
+        }
+        if (code.charAt(0) == 'v' && Character.isDigit(code.charAt(1))) {
+            var operator = "operator " + parseSourceName();
+            return new Node(operator, operator);
+        }
+        for (var i = 0; OPERATORS.length > i; i += 2) {
+            if (!OPERATORS[i].equals(code)) continue;
+            var token = OPERATORS[i + 1];
+            var operator = (Character.isLetter(token.charAt(0)) ? "operator " : "operator") + token;
+            return new Node(operator, operator);
+        }
+        throw new IllegalArgumentException();
+    }
+
+    // <substitution> ::= S_ | S <seq-id> _ | St | Sa | Sb | Ss | Si | So | Sd
+    private Node parseSubstitution() {
+        expect('S');
+        var c = symbol.charAt(pos++);
+        switch (c) {
+            case 'a':
+                return new Node("std::allocator", "allocator");
+            case 'b':
+                return new Node("std::basic_string", "basic_string");
+            case 's':
+                return new Node(
+                        "std::basic_string<char, std::char_traits<char>, std::allocator<char> >",
+                        "basic_string");
+            case 'i':
+                return new Node(
+                        "std::basic_istream<char, std::char_traits<char> >", "basic_istream");
+            case 'o':
+                return new Node(
+                        "std::basic_ostream<char, std::char_traits<char> >", "basic_ostream");
+            case 'd':
+                return new Node(
+                        "std::basic_iostream<char, std::char_traits<char> >", "basic_iostream");
+        }
+        var index = 0;
+        if (c != '_') {
+            for (; c != '_'; c = symbol.charAt(pos++)) {
+                if (Character.isDigit(c)) {
+                    index = index * 36 + c - '0';
+                } else if (Character.isUpperCase(c)) {
+                    index = index * 36 + c - 'A' + 10;
+                } else {
+                    throw new IllegalArgumentException();
+                }
+            }
+            index++;
+        }
+        return substitutions.get(index);
+    }
+
+    // <template-param> ::= T_ | T <number> _
+    private Node parseTemplateParam() {
+        expect('T');
+        var index = peek() == '_' ? 0 : parseNumber() + 1;
+        expect('_');
+        var arg = templateArgs.get(index);
+        if (!expanding || arg.pack == null) return arg;
+        if (expansionPack == null) expansionPack = arg;
+        return arg == expansionPack && expansionIndex >= 0 ? arg.pack.get(expansionIndex) : arg;
+    }
+
+    // <template-args> ::= I <template-arg>+ E
+    private String parseTemplateArgs(boolean record) {
+        expect('I');
+        var args = new ArrayList<Node>();
+        while (!consume('E')) {
+            args.add(parseTemplateArg());
+        }
+        if (record) templateArgs = args;
+
+        var text = new StringBuilder("<");
+        for (var arg : args) appendListItem(text, arg);
+        // c++filt writes X<Y<int>> if the argument after Y<int> is an empty pack
+        var last = args.isEmpty() ? "" : args.get(args.size() - 1).toString();
+        if (text.charAt(text.length() - 1) == '>' && !last.isEmpty()) text.append(' ');
+        return text.append('>').toString();
+    }
+
+    private Node parseTemplateArg() {
+        enter();
+        switch (peek()) {
+            case 'L':
+                return leave(parseLiteral());
+            case 'J':
+                {
+                    pos++;
+                    var pack = new ArrayList<Node>();
+                    while (!consume('E')) pack.add(parseTemplateArg());
+                    return leave(Node.pack(pack));
+                }
+            case 'X':
+                throw new IllegalArgumentException();
+            default:
+                return leave(parseType());
+        }
+    }
+
+    // <expr-primary> ::= L <type> <value number> E | L <mangled-name> E
+    private Node parseLiteral() {
+        expect('L');
+        if (consume('_')) {
+            expect('Z');
+            var entity = parseEncoding(false);
+            expect('E');
+            return entity;
+        }
+        if (peek() == 'Z') {
+            pos++;
+            var entity = parseEncoding(false);
+            expect('E');
+            return entity;
+        }
+        var type = parseType().toString();
+        var start = pos;
+        while (peek() != 'E') pos++;
+        var value = symbol.substring(start, pos);
+        pos++;
+        if (value.startsWith("n")) value = "-" + value.substring(1);
+        return switch (type) {
+            case "bool" -> new Node("0".equals(value) ? "false" : "true");
+            case "int" -> new Node(value);
+            case "unsigned int" -> new Node(value + "u");
+            case "long" -> new Node(value + "l");
+            case "unsigned long" -> new Node(value + "ul");
+            case "long long" -> new Node(value + "ll");
+            case "unsigned long long" -> new Node(value + "ull");
+            default -> new Node("(" + type + ")" + value);
+        };
+    }
+
+    private Node parseType() {
+        enter();
+        var c = peek();
+        Node result;
+        switch (c) {
+            case 'r':
+            case 'V':
+            case 'K':
+                {
+                    var qualifiers = new StringBuilder();
+                    if (consume('r')) qualifiers.append(" __restrict");
+                    if (consume('V')) qualifiers.insert(0, " volatile");
+                    if (consume('K')) qualifiers.insert(0, " const");
+                    // The qualifiers of a function type apply to this, the unqualified function
+                    // type is not a substitution candidate of its own
+                    var type = peek() == 'F' ? parseFunctionType() : parseType();
+                    result = qualify(type, qualifiers.toString());
+                    break;
+                }
+            case 'P':
+                pos++;
+                result = pointerTo(parseType(), "*");
+                break;
+            case 'R':
+                pos++;
+                result = referenceTo(parseType(), "&");
+                break;
+            case 'O':
+                pos++;
+                result = referenceTo(parseType(), "&&");
+                break;
+            case 'F':
+                result = parseFunctionType();
+                break;
+            case 'A':
+                result = parseArrayType();
+                break;
+            case 'M':
+                {
+                    pos++;
+                    var owner = parseType();
+                    var member = parseType();
+                    // int X::*, but void (X::*)(int)
+                    var declarator = member.right.isEmpty() ? " " + owner + "::*" : owner + "::*";
+                    result = pointerTo(member, declarator);
+                    break;
+                }
+            case 'T':
+                result = parseTemplateParam();
+                substitutions.add(result);
+                if (peek() == 'I') {
+                    result = withTemplateArgs(result, parseTemplateArgs(false));
+                    break;
+                }
+                return leave(result);
+            case 'S':
+                if (peek(1) != 't') {
+                    result = parseSubstitution();
+                    if (peek() != 'I') return leave(result);
+                    result = withTemplateArgs(result, parseTemplateArgs(false));
+                    break;
+                }
+                result = parseName(new NameState());
+                break;
+            case 'D':
+                {
+                    var builtin = parseDBuiltin();
+                    if (builtin != null) return leave(builtin);
+                    if (consume('p')) {
+                        result = parsePackExpansion();
+                        break;
+                    }
+                    throw new IllegalArgumentException();
+                }
+            case 'u':
+                pos++;
+                result = parseSourceName();
+                break;
+            case 'N':
+            case 'Z':
+                result = parseName(new NameState());
+                break;
+            default:
+                if (Character.isDigit(c)) {
+                    result = parseName(new NameState());
+                    break;
+                }
+                return leave(parseBuiltinType());
+        }
+        substitutions.add(result);
+        return leave(result);
+    }
+
+    private Node parseBuiltinType() {
+        var type =
+                switch (symbol.charAt(pos++)) {
+                    case 'v' -> "void";
+                    case 'w' -> "wchar_t";
+                    case 'b' -> "bool";
+                    case 'c' -> "char";
+                    case 'a' -> "signed char";
+                    case 'h' -> "unsigned char";
+                    case 's' -> "short";
+                    case 't' -> "unsigned short";
+                    case 'i' -> "int";
+                    case 'j' -> "unsigned int";
+                    case 'l' -> "long";
+                    case 'm' -> "unsigned long";
+                    case 'x' -> "long long";
+                    case 'y' -> "unsigned long long";
+                    case 'n' -> "__int128";
+                    case 'o' -> "unsigned __int128";
+                    case 'f' -> "float";
+                    case 'd' -> "double";
+                    case 'e' -> "long double";
+                    case 'g' -> "__float128";
+                    case 'z' -> "...";
+                    default -> throw new IllegalArgumentException();
+                };
+        return new Node(type);
+    }
+
+    private Node parseDBuiltin() {
+        String type =
+                switch (peek(1)) {
+                    case 'd' -> "decimal64";
+                    case 'e' -> "decimal128";
+                    case 'f' -> "decimal32";
+                    case 'h' -> "half";
+                    case 'i' -> "char32_t";
+                    case 's' -> "char16_t";
+                    case 'u' -> "char8_t";
+                    case 'a' -> "auto";
+                    case 'c' -> "decltype(auto)";
+                    case 'n' -> "decltype(nullptr)";
+                    default -> null;
+                };
+        pos++;
+        if (type == null) return null;
+        pos++;
+        return new Node(type);
+    }
+
+    // <function-type> ::= [<CV-qualifiers>] F [Y] <bare-function-type> [<ref-qualifier>] E
+    private Node parseFunctionType() {
+        expect('F');
+        consume('Y');
+        var returnType = parseType();
+        var params = new StringBuilder("(");
+        var end = peek(1) == 'R' || peek(1) == 'O' ? peek(2) : peek(1);
+        if (peek() == 'v' && end == 'E') {
+            pos++;
+        } else {
+            while (peek() != 'E') {
+                if ((peek() == 'R' || peek() == 'O') && peek(1) == 'E') break;
+                appendListItem(params, parseType());
+            }
+        }
+        params.append(')');
+        if (consume('R')) params.append(" &");
+        else if (consume('O')) params.append(" &&");
+        expect('E');
+        return new Node(returnType + " ", params.toString(), false, null);
+    }
+
+    // <array-type> ::= A <positive dimension number> _ <element type> | A _ <element type>
+    private Node parseArrayType() {
+        expect('A');
+        var dimension = peek() == '_' ? "" : String.valueOf(parseNumber());
+        expect('_');
+        var element = parseType();
+        var bound = "[" + dimension + "]";
+        if (element.right.isEmpty()) {
+            return new Node(element.left + " ", bound, false, null);
+        }
+        return new Node(element.left, bound + element.right, element.paren, null);
+    }
+
+    // <type> ::= Dp <type>
+    private Node parsePackExpansion() {
+        var wasExpanding = expanding;
+        var outerPack = expansionPack;
+        var outerIndex = expansionIndex;
+        expanding = true;
+        expansionPack = null;
+        expansionIndex = -1;
+        try {
+            var start = pos;
+            var count = substitutions.size();
+            var pattern = parseType();
+            var pack = expansionPack;
+            if (pack == null) return pattern;
+
+            // Parse the pattern again for each element, so that e.g. DpRKT_ over {int, long}
+            // becomes int const&, long const&, and an empty pack disappears
+            var end = pos;
+            var candidates = new ArrayList<>(substitutions.subList(count, substitutions.size()));
+            var elements = new ArrayList<Node>();
+            for (expansionIndex = 0; pack.pack.size() > expansionIndex; expansionIndex++) {
+                pos = start;
+                substitutions.subList(count, substitutions.size()).clear();
+                elements.add(parseType());
+            }
+            substitutions.subList(count, substitutions.size()).clear();
+            substitutions.addAll(candidates);
+            pos = end;
+            return Node.pack(elements);
+        } finally {
+            expanding = wasExpanding;
+            expansionPack = outerPack;
+            expansionIndex = outerIndex;
+        }
+    }
+
+    private static void appendListItem(StringBuilder list, Node item) {
+        var text = item.toString();
+        // An empty pack contributes nothing, not even a separator
+        if (text.isEmpty()) return;
+        if (list.length() > 1) list.append(", ");
+        list.append(text);
+    }
+
+    private static Node qualify(Node type, String qualifiers) {
+        if (!type.paren && type.right.startsWith("(")) {
+            // The qualifiers of a member function go after its parameters and before its
+            // ref-qualifier: void (X::*)(int) const &
+            var right = type.right;
+            var at =
+                    right.endsWith(" &&")
+                            ? right.length() - 3
+                            : right.endsWith(" &") ? right.length() - 2 : right.length();
+            right = right.substring(0, at) + qualifiers + right.substring(at);
+            return new Node(type.left, right, false, null);
+        }
+        if (!type.paren && type.right.startsWith("[")) {
+            // An array of const T, not a const array: int const [4]
+            var left = type.left.substring(0, type.left.length() - 1);
+            if (left.endsWith(qualifiers)) return type;
+            return new Node(left + qualifiers + " ", type.right, false, null);
+        }
+        // A template parameter substituted with an already qualified type: T const for T =
+        // int const stays int const
+        if (type.right.isEmpty() && type.left.endsWith(qualifiers)) return type;
+        return new Node(type.left + qualifiers, type.right, type.paren, null);
+    }
+
+    private static Node referenceTo(Node type, String declarator) {
+        if (type.referent != null) {
+            // Reference collapsing, only an rvalue reference to an rvalue reference stays one
+            if (type.reference.equals("&") || declarator.equals("&&")) return type;
+            return referenceTo(type.referent, "&");
+        }
+        var result = pointerTo(type, declarator);
+        return new Node(result.left, result.right, result.paren, null, type, declarator, null);
+    }
+
+    private static Node pointerTo(Node type, String declarator) {
+        if (type.right.isEmpty() || type.paren) {
+            return new Node(type.left + declarator, type.right, type.paren, null);
+        }
+        var separator = type.right.startsWith("[") ? ") " : ")";
+        return new Node(type.left + "(" + declarator, separator + type.right, true, null);
+    }
+
+    private static final class NameState {
+        /** Whether this is the name of an encoding, whose template arguments T_ refers to. */
+        boolean outermost;
+
+        boolean templateArgs;
+        boolean ctorDtorConversion;
+        String qualifiers = "";
+    }
+
+    /**
+     * A demangled type or name. Function and array types are split around the position of the
+     * declarator so that pointers to them render as {@code void (*)(int)}.
+     */
+    private static final class Node {
+        final String left;
+        final String right;
+        final boolean paren;
+
+        /** The unqualified name without template arguments, used for ctor and dtor names. */
+        final String base;
+
+        /** The type a reference type refers to, and the declarator it added to it. */
+        final Node referent;
+
+        final String reference;
+
+        /** The elements of a template argument pack or of an expanded pack. */
+        final ArrayList<Node> pack;
+
+        Node(String text) {
+            this(text, "", false, null);
+        }
+
+        Node(String text, String base) {
+            this(text, "", false, base);
+        }
+
+        Node(String left, String right, boolean paren, String base) {
+            this(left, right, paren, base, null, null, null);
+        }
+
+        Node(
+                String left,
+                String right,
+                boolean paren,
+                String base,
+                Node referent,
+                String reference,
+                ArrayList<Node> pack) {
+            this.left = left;
+            this.right = right;
+            this.paren = paren;
+            this.base = base;
+            this.referent = referent;
+            this.reference = reference;
+            this.pack = pack;
+        }
+
+        static Node pack(ArrayList<Node> elements) {
+            var text = new StringBuilder();
+            for (var element : elements) {
+                var item = element.toString();
+                if (item.isEmpty()) continue;
+                if (text.length() > 0) text.append(", ");
+                text.append(item);
+            }
+            return new Node(text.toString(), "", false, null, null, null, elements);
+        }
+
+        @Override
+        public String toString() {
+            return left + right;
+        }
+    }
+}
@@ -17,31 +17,115 @@
 package io.github.eirv.elfloader;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-public class ElfImg {
+public class ElfImg implements Closeable {
+    private static final int ELFMAG = 0x464c457f;
     private static final int EI_CLASS = 4;
     private static final int EI_NIDENT = 16;
     private static final int SHT_SYMTAB = 2;
     private static final int SHT_DYNSYM = 11;
+    private static final int SHF_COMPRESSED = 0x800;
     private static final int SHN_UNDEF = 0;
+    private static final int ELFCOMPRESS_ZLIB = 1;
     private static final int PT_LOAD = 1;
+    private static final int PT_DYNAMIC = 2;
+    private static final int PT_NOTE = 4;
+    private static final int NT_GNU_BUILD_ID = 3;
+    private static final int DT_NULL = 0;
+    private static final int DT_NEEDED = 1;
+    private static final int DT_PLTRELSZ = 2;
+    private static final int DT_STRTAB = 5;
+    private static final int DT_SYMTAB = 6;
+    private static final int DT_RELA = 7;
+    private static final int DT_RELASZ = 8;
+    private static final int DT_REL = 17;
+    private static final int DT_RELSZ = 18;
+    private static final int DT_PLTREL = 20;
+    private static final int DT_JMPREL = 23;
+    private static final int DT_ANDROID_REL = 0x6000000f;
+    private static final int DT_ANDROID_RELSZ = 0x60000010;
+    private static final int DT_ANDROID_RELA = 0x60000011;
+    private static final int DT_ANDROID_RELASZ = 0x60000012;
+    private static final int EM_386 = 3;
+    private static final int EM_ARM = 40;
+    private static final int EM_X86_64 = 62;
+    private static final int EM_AARCH64 = 183;
+    private static final int EM_RISCV = 243;
+    private static final int ANDROID_PACKED_MAGIC = 0x32535041; // APS2
+    private static final int RELOCATION_GROUPED_BY_INFO_FLAG = 1;
+    private static final int RELOCATION_GROUPED_BY_OFFSET_DELTA_FLAG = 2;
+    private static final int RELOCATION_GROUPED_BY_ADDEND_FLAG = 4;
+    private static final int RELOCATION_GROUP_HAS_ADDEND_FLAG = 8;
+    private static final int SYMBOLS_PER_CHUNK = 256;
+    private static final int INFLATE_BUFFER_SIZE = 8192;
+    private static final int MAX_INFLATE_RATIO = 1032; // zlib's limit
+    private static final Method freeDirectBuffer;
+
+    static {
+        Method method = null;
+        try {
+            var nioUtils = Class.forName("java.nio.NioUtils");
+            method = nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class);
+        } catch (ReflectiveOperationException ignored) {
+        }
+        freeDirectBuffer = method;
+    }
 
     private final HashMap<String, Long> symbols = new HashMap<>();
+    private final ArrayList<String> dependencies = new ArrayList<>();
+    private final ArrayList<long[]> symbolTables = new ArrayList<>();
+    private ByteBuffer elf;
+    private boolean ownsBuffer;
+    private boolean is64Bit;
+    private int machine;
+    private long bias;
+    private int phoff;
+    private int phentsize;
+    private int phnum;
+    private int dynOffset;
+    private int dynSize;
+    private long[][] loadSegments = new long[0][];
+    private String buildId;
+    private Map<String, long[]> imports;
+    private String[] demangledNames;
+    private String[] demangledSignatures;
+    private long[] demangledAddresses;
 
     public ElfImg(String filename) {
         this(filename, false);
     }
 
     public ElfImg(String filename, boolean searchDebugSymbols) {
+        this(filename, searchDebugSymbols, null);
+    }
+
+    /**
+     * Parses the image of {@code filename} mapped into this process, retaining only the symbols
+     * accepted by {@code filter}, or all symbols if it is null.
+     */
+    public ElfImg(String filename, boolean searchDebugSymbols, SymbolFilter filter) {
         try {
             filename = new File(filename).getCanonicalPath();
         } catch (IOException ignored) {
@@ -74,121 +158,661 @@ public class ElfImg {
 
         try (var raf = new FileInputStream(file)) {
             var elf = raf.getChannel().map(MapMode.READ_ONLY, 0, file.length());
-            elf.order(ByteOrder.LITTLE_ENDIAN);
-
-            elf.position(EI_CLASS);
-            var is64Bit = elf.get() == 2;
-            var ptr = is64Bit ? 8 : 4;
-            elf.position(EI_NIDENT + 2 + 2 + 4 + ptr);
-            var phoff = (int) getPointer(elf, is64Bit);
-            var shoff = (int) getPointer(elf, is64Bit);
-            elf.position(elf.position() + 4 + 2);
-            var e_phentsize = elf.getShort();
-            var e_phnum = elf.getShort();
-            var e_shentsize = elf.getShort();
-            var e_shnum = elf.getShort();
-
-            var min_vaddr = Integer.MAX_VALUE;
-            for (var i = 0; e_phnum > i; i++) {
-                elf.position(phoff + i * e_phentsize);
-                var p_type = elf.getInt();
-                if (p_type != PT_LOAD) continue;
-                elf.position(elf.position() + 4);
-                var p_vaddr = (int) getPointer(elf, is64Bit);
-                if (min_vaddr > p_vaddr) min_vaddr = p_vaddr;
-            }
-            base -= min_vaddr;
-
-            boolean dynsym = false;
-            boolean symtab = false;
-
-            for (var i = 0; e_shnum > i; i++) {
-                elf.position(shoff + i * e_shentsize + 4);
-                var sh_type = elf.getInt();
-                if (sh_type != SHT_DYNSYM && (!searchDebugSymbols || sh_type != SHT_SYMTAB))
-                    continue;
+            ownsBuffer = true;
+            parse(elf, base, searchDebugSymbols, filter);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Parses an ELF image held in memory, starting at the buffer's current position. Symbol
+     * addresses are reported as raw {@code st_value}s.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold a well-formed ELF image
+     */
+    public ElfImg(ByteBuffer elf) {
+        this(elf, 0, false);
+    }
+
+    /**
+     * Parses an ELF image held in memory, starting at the buffer's current position.
+     *
+     * @param base the address the first {@code PT_LOAD} segment is mapped at, or 0 to report
+     *     symbol addresses as raw {@code st_value}s
+     * @throws IllegalArgumentException if the buffer does not hold a well-formed ELF image
+     */
+    public ElfImg(ByteBuffer elf, long base) {
+        this(elf, base, false);
+    }
+
+    /**
+     * Parses an ELF image held in memory, starting at the buffer's current position. The buffer
+     * may be a heap, direct or mapped buffer; its contents are read in place and its position
+     * is left untouched. The contents are retained for indexes built on demand, such as {@link
+     * #getImports()}, and must not change afterwards.
+     *
+     * @param base the address the first {@code PT_LOAD} segment is mapped at, or 0 to report
+     *     symbol addresses as raw {@code st_value}s
+     * @throws IllegalArgumentException if the buffer does not hold a well-formed ELF image
+     */
+    public ElfImg(ByteBuffer elf, long base, boolean searchDebugSymbols) {
+        this(elf, base, searchDebugSymbols, null);
+    }
+
+    /**
+     * Parses an ELF image held in memory like {@link #ElfImg(ByteBuffer, long, boolean)},
+     * retaining only the symbols accepted by {@code filter}, or all symbols if it is null.
+     */
+    public ElfImg(ByteBuffer elf, long base, boolean searchDebugSymbols, SymbolFilter filter) {
+        elf = elf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (elf.remaining() < EI_NIDENT || elf.getInt(0) != ELFMAG) {
+            throw new IllegalArgumentException("Not an ELF image");
+        }
+        try {
+            parse(elf, base, searchDebugSymbols, filter);
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException
+                | IOException e) {
+            throw new IllegalArgumentException("Malformed ELF image", e);
+        }
+    }
+
+    private void parse(ByteBuffer elf, long base, boolean searchDebugSymbols, SymbolFilter filter)
+            throws IOException {
+        this.elf = elf.order(ByteOrder.LITTLE_ENDIAN);
+
+        elf.position(EI_CLASS);
+        var is64Bit = this.is64Bit = elf.get() == 2;
+        var ptr = is64Bit ? 8 : 4;
+        elf.position(EI_NIDENT + 2);
+        machine = elf.getShort() & 0xffff;
+        elf.position(EI_NIDENT + 2 + 2 + 4 + ptr);
+        var e_phoff = getPointer(elf, is64Bit);
+        var e_shoff = getPointer(elf, is64Bit);
+        elf.position(elf.position() + 4 + 2);
+        var e_phentsize = elf.getShort() & 0xffff;
+        var e_phnum = elf.getShort() & 0xffff;
+        var e_shentsize = elf.getShort() & 0xffff;
+        var e_shnum = elf.getShort() & 0xffff;
+        if (e_phnum != 0 && e_phentsize < (is64Bit ? 56 : 32)) {
+            throw new IllegalArgumentException("Bad e_phentsize: " + e_phentsize);
+        }
+        if (e_shnum != 0 && e_shentsize < (is64Bit ? 64 : 40)) {
+            throw new IllegalArgumentException("Bad e_shentsize: " + e_shentsize);
+        }
+        checkBounds(elf, e_phoff, (long) e_phnum * e_phentsize, "Program headers");
+        checkBounds(elf, e_shoff, (long) e_shnum * e_shentsize, "Section headers");
+        var phoff = (int) e_phoff;
+        var shoff = (int) e_shoff;
+
+        var min_vaddr = Integer.MAX_VALUE;
+        var dyn_offset = 0;
+        var dyn_size = 0;
+        var segments = new ArrayList<long[]>();
+        for (var i = 0; e_phnum > i; i++) {
+            elf.position(phoff + i * e_phentsize);
+            var p_type = elf.getInt();
+            var p_flags = is64Bit ? elf.getInt() : 0;
+            var p_offset = getPointer(elf, is64Bit);
+            if (p_type == PT_DYNAMIC) {
+                dyn_offset = (int) p_offset;
                 elf.position(elf.position() + ptr * 2);
-                var sym_offset = (int) getPointer(elf, is64Bit);
-                var sh_size = getPointer(elf, is64Bit);
-                var sh_link = elf.getInt();
-                elf.position(elf.position() + 4 + ptr);
-                var sym_count = (int) (sh_size / getPointer(elf, is64Bit));
-                elf.position(shoff + sh_link * e_shentsize + 4 * 2 + ptr * 2);
-                var str_offset = (int) getPointer(elf, is64Bit);
-                var str_size = (int) getPointer(elf, is64Bit);
-                if (sh_type == SHT_DYNSYM) {
-                    searchSymbols(
-                            symbols,
-                            base,
-                            elf,
-                            is64Bit,
-                            sym_offset,
-                            sym_count,
-                            str_offset,
-                            str_size);
-                    dynsym = true;
-                    if (!searchDebugSymbols) break;
-                } else {
-                    searchSymbols(
-                            symbols,
-                            base,
-                            elf,
-                            is64Bit,
-                            sym_offset,
-                            sym_count,
-                            str_offset,
-                            str_size);
-                    symtab = true;
+                dyn_size = (int) getPointer(elf, is64Bit);
+                continue;
+            }
+            if (p_type == PT_NOTE) {
+                elf.position(elf.position() + ptr * 2);
+                var p_filesz = getPointer(elf, is64Bit);
+                if (buildId == null) buildId = searchBuildId(elf, p_offset, p_filesz);
+                continue;
+            }
+            if (p_type != PT_LOAD) continue;
+            var p_vaddr = getPointer(elf, is64Bit);
+            elf.position(elf.position() + ptr);
+            var p_filesz = getPointer(elf, is64Bit);
+            var p_memsz = getPointer(elf, is64Bit);
+            if (!is64Bit) p_flags = elf.getInt();
+            segments.add(new long[] {p_vaddr, p_filesz, p_memsz, p_flags, p_offset});
+            if (min_vaddr > (int) p_vaddr) min_vaddr = (int) p_vaddr;
+        }
+        if (base != 0) base -= min_vaddr;
+        bias = base;
+        for (var segment : segments) segment[0] += base;
+        loadSegments = segments.toArray(new long[0][]);
+        this.phoff = phoff;
+        phentsize = e_phentsize;
+        phnum = e_phnum;
+        dynOffset = dyn_offset;
+        dynSize = dyn_size;
+
+        if (dyn_size != 0) {
+            searchDependencies(elf);
+        }
+
+        boolean dynsym = false;
+        boolean symtab = false;
+
+        var sym_ent = is64Bit ? 24 : 16;
+        for (var i = 0; e_shnum > i; i++) {
+            elf.position(shoff + i * e_shentsize + 4);
+            var sh_type = elf.getInt();
+            if (sh_type != SHT_DYNSYM && (!searchDebugSymbols || sh_type != SHT_SYMTAB))
+                continue;
+            var sym_flags = getPointer(elf, is64Bit);
+            elf.position(elf.position() + ptr);
+            var sym_offset = getPointer(elf, is64Bit);
+            var sym_size = getPointer(elf, is64Bit);
+            var sh_link = elf.getInt();
+            elf.position(elf.position() + 4 + ptr);
+            var sh_entsize = getPointer(elf, is64Bit);
+            if (sh_entsize != sym_ent) {
+                throw new IllegalArgumentException("Bad symbol table entsize: " + sh_entsize);
+            }
+            checkBounds(elf, sym_offset, sym_size, "Symbol table");
+            if (sh_link <= 0 || sh_link >= e_shnum) {
+                throw new IllegalArgumentException("Bad symbol table link: " + sh_link);
+            }
+            elf.position(shoff + sh_link * e_shentsize + 4 * 2);
+            var str_flags = getPointer(elf, is64Bit);
+            elf.position(elf.position() + ptr);
+            var str_offset = getPointer(elf, is64Bit);
+            var str_size = getPointer(elf, is64Bit);
+            checkBounds(elf, str_offset, str_size, "String table");
+            var table =
+                    new long[] {sym_offset, sym_size, sym_flags, str_offset, str_size, str_flags};
+            symbolTables.add(table);
+            if (filter != SymbolFilter.NONE) {
+                searchSymbols(
+                        (name, off, len, value, size, type, binding) -> {
+                            if (size == 0) return true;
+                            if (filter != null && !filter.accept(name, off, len, type, binding)) {
+                                return true;
+                            }
+                            symbols.put(new String(name, off, len), value);
+                            return true;
+                        },
+                        base,
+                        elf,
+                        is64Bit,
+                        table);
+            }
+            if (sh_type == SHT_DYNSYM) {
+                dynsym = true;
+                if (!searchDebugSymbols) break;
+            } else {
+                symtab = true;
+            }
+            if (dynsym && symtab) break;
+        }
+    }
+
+    /** Throws if {@code [off, off + size)} is not inside {@code elf}. */
+    private static void checkBounds(ByteBuffer elf, long off, long size, String what) {
+        if (off < 0 || size < 0 || off > elf.limit() - size) {
+            throw new IllegalArgumentException(what + " out of bounds");
+        }
+    }
+
+    private static String searchBuildId(ByteBuffer elf, long off, long size) {
+        var end = off + size;
+        while (end >= off + 12) {
+            elf.position((int) off);
+            var n_namesz = elf.getInt();
+            var n_descsz = elf.getInt();
+            var n_type = elf.getInt();
+            if (n_namesz < 0 || n_descsz < 0) break;
+            var desc_off = off + 12 + ((n_namesz + 3L) & ~3L);
+            if (n_type == NT_GNU_BUILD_ID
+                    && n_namesz == 4
+                    && elf.getInt(elf.position()) == 0x00554e47 // GNU
+                    && end >= desc_off + n_descsz) {
+                var id = new StringBuilder(n_descsz * 2);
+                for (var i = 0; n_descsz > i; i++) {
+                    var b = elf.get((int) desc_off + i) & 0xff;
+                    id.append(Character.forDigit(b >>> 4, 16));
+                    id.append(Character.forDigit(b & 15, 16));
                 }
-                if (dynsym && symtab) break;
+                return id.toString();
             }
-        } catch (IOException ignored) {
+            off = desc_off + ((n_descsz + 3L) & ~3L);
         }
+        return null;
     }
 
-    private static void searchSymbols(
-            HashMap<String, Long> result,
-            long base,
-            MappedByteBuffer elf,
-            boolean is64Bit,
-            int sym_off,
-            int sym_count,
-            int str_off,
-            int str_size) {
-        if (sym_count == 0 || str_size == 0) {
-            return;
-        }
-
-        var strings = new byte[str_size];
-        elf.position(str_off);
-        elf.get(strings);
-
-        elf.position(sym_off);
-        for (var n = 0; sym_count > n; n++) {
-            var st_name = elf.getInt();
-            long st_value;
-            if (is64Bit) {
-                elf.position(elf.position() + 1 + 1 + 2);
-                st_value = elf.getLong();
-                var st_size = elf.getLong();
-                if (st_size == 0) continue;
+    private void searchDependencies(ByteBuffer elf) {
+        var ptr = is64Bit ? 8 : 4;
+        var strtab = 0L;
+        var needed = 0;
+        for (var off = dynOffset; dynOffset + dynSize > off; off += ptr * 2) {
+            elf.position(off);
+            var d_tag = getPointer(elf, is64Bit);
+            if (d_tag == DT_NULL) break;
+            if (d_tag == DT_NEEDED) needed++;
+            if (d_tag == DT_STRTAB) strtab = getPointer(elf, is64Bit);
+        }
+        if (needed == 0 || strtab == 0) return;
+
+        var str_off = toFileOffset(elf, strtab);
+        if (str_off < 0) return;
+
+        for (var off = dynOffset; dynOffset + dynSize > off; off += ptr * 2) {
+            elf.position(off);
+            var d_tag = getPointer(elf, is64Bit);
+            if (d_tag == DT_NULL) break;
+            if (d_tag != DT_NEEDED) continue;
+            dependencies.add(getString(elf, (int) (str_off + getPointer(elf, is64Bit))));
+        }
+    }
+
+    private Map<String, long[]> searchImports() {
+        var result = new HashMap<String, long[]>();
+        if (elf == null || dynSize == 0) return result;
+        var elf = this.elf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        var ptr = is64Bit ? 8 : 4;
+        long symtab = 0, strtab = 0, pltrel = 0;
+        long jmprel = 0, jmprel_size = 0, rela = 0, rela_size = 0, rel = 0, rel_size = 0;
+        long android_rela = 0, android_rela_size = 0, android_rel = 0, android_rel_size = 0;
+        for (var off = dynOffset; dynOffset + dynSize > off; off += ptr * 2) {
+            elf.position(off);
+            var d_tag = getPointer(elf, is64Bit);
+            if (d_tag == DT_NULL) break;
+            var d_val = getPointer(elf, is64Bit);
+            switch ((int) d_tag) {
+                case DT_SYMTAB -> symtab = d_val;
+                case DT_STRTAB -> strtab = d_val;
+                case DT_PLTREL -> pltrel = d_val;
+                case DT_JMPREL -> jmprel = d_val;
+                case DT_PLTRELSZ -> jmprel_size = d_val;
+                case DT_RELA -> rela = d_val;
+                case DT_RELASZ -> rela_size = d_val;
+                case DT_REL -> rel = d_val;
+                case DT_RELSZ -> rel_size = d_val;
+                case DT_ANDROID_RELA -> android_rela = d_val;
+                case DT_ANDROID_RELASZ -> android_rela_size = d_val;
+                case DT_ANDROID_REL -> android_rel = d_val;
+                case DT_ANDROID_RELSZ -> android_rel_size = d_val;
+            }
+        }
+        var sym_off = toFileOffset(elf, symtab);
+        var str_off = toFileOffset(elf, strtab);
+        if (sym_off < 0 || str_off < 0) return result;
+
+        searchRelocations(result, elf, sym_off, str_off, jmprel, jmprel_size, pltrel == DT_RELA);
+        searchRelocations(result, elf, sym_off, str_off, rela, rela_size, true);
+        searchRelocations(result, elf, sym_off, str_off, rel, rel_size, false);
+        searchPackedRelocations(
+                result, elf, sym_off, str_off, android_rela, android_rela_size, true);
+        searchPackedRelocations(
+                result, elf, sym_off, str_off, android_rel, android_rel_size, false);
+        // Slot 0 of each array holds the number of slots in use
+        result.replaceAll((name, slots) -> Arrays.copyOfRange(slots, 1, (int) slots[0] + 1));
+        return result;
+    }
+
+    private void searchRelocations(
+            HashMap<String, long[]> result,
+            ByteBuffer elf,
+            long sym_off,
+            long str_off,
+            long vaddr,
+            long size,
+            boolean isRela) {
+        var off = toFileOffset(elf, vaddr);
+        if (off < 0 || size == 0) return;
+        var ptr = is64Bit ? 8 : 4;
+        var entsize = isRela ? ptr * 3 : ptr * 2;
+        for (var n = 0L; size / entsize > n; n++) {
+            elf.position((int) (off + n * entsize));
+            var r_offset = getPointer(elf, is64Bit);
+            var r_info = getPointer(elf, is64Bit);
+            var r_addend = isRela ? getPointer(elf, is64Bit) : 0;
+            addImport(result, elf, sym_off, str_off, r_offset, r_info, r_addend);
+        }
+    }
+
+    private void searchPackedRelocations(
+            HashMap<String, long[]> result,
+            ByteBuffer elf,
+            long sym_off,
+            long str_off,
+            long vaddr,
+            long size,
+            boolean isRela) {
+        var off = toFileOffset(elf, vaddr);
+        if (off < 0 || size < 4) return;
+        var packed = elf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        packed.position((int) off);
+        if (packed.getInt() != ANDROID_PACKED_MAGIC) return;
+
+        var count = readSleb128(packed);
+        var r_offset = readSleb128(packed);
+        var r_info = 0L;
+        var r_addend = 0L;
+        for (var i = 0L; count > i; ) {
+            var group_size = readSleb128(packed);
+            var group_flags = readSleb128(packed);
+            var grouped_by_info = (group_flags & RELOCATION_GROUPED_BY_INFO_FLAG) != 0;
+            var grouped_by_offset = (group_flags & RELOCATION_GROUPED_BY_OFFSET_DELTA_FLAG) != 0;
+            var grouped_by_addend = (group_flags & RELOCATION_GROUPED_BY_ADDEND_FLAG) != 0;
+            var has_addend = isRela && (group_flags & RELOCATION_GROUP_HAS_ADDEND_FLAG) != 0;
+            var group_r_offset_delta = grouped_by_offset ? readSleb128(packed) : 0;
+            if (grouped_by_info) r_info = readSleb128(packed);
+            if (!has_addend) {
+                r_addend = 0;
+            } else if (grouped_by_addend) {
+                r_addend += readSleb128(packed);
+            }
+
+            for (var j = 0L; group_size > j; j++) {
+                r_offset += grouped_by_offset ? group_r_offset_delta : readSleb128(packed);
+                if (!grouped_by_info) r_info = readSleb128(packed);
+                if (has_addend && !grouped_by_addend) r_addend += readSleb128(packed);
+                addImport(result, elf, sym_off, str_off, r_offset, r_info, r_addend);
+            }
+            i += group_size;
+        }
+    }
+
+    private void addImport(
+            HashMap<String, long[]> result,
+            ByteBuffer elf,
+            long sym_off,
+            long str_off,
+            long r_offset,
+            long r_info,
+            long r_addend) {
+        long sym, type;
+        if (is64Bit) {
+            sym = r_info >>> 32;
+            type = r_info & 0xffffffffL;
+        } else {
+            sym = (r_info & 0xffffffffL) >>> 8;
+            type = r_info & 0xff;
+        }
+        // A non-zero addend makes the slot point into the symbol rather than at it
+        if (sym == 0 || r_addend != 0 || !isSlotRelocation(machine, type)) return;
+
+        var st_name = elf.getInt((int) (sym_off + sym * (is64Bit ? 24 : 16)));
+        var name = getString(elf, (int) (str_off + st_name));
+        if (name.isEmpty()) return;
+        var slots = result.get(name);
+        if (slots == null) {
+            result.put(name, slots = new long[4]);
+        } else if (slots[0] + 1 == slots.length) {
+            result.put(name, slots = Arrays.copyOf(slots, slots.length * 2));
+        }
+        slots[(int) ++slots[0]] = bias + r_offset;
+    }
+
+    private static boolean isSlotRelocation(int machine, long type) {
+        return switch (machine) {
+            // R_AARCH64_GLOB_DAT, R_AARCH64_JUMP_SLOT
+            case EM_AARCH64 -> type == 1025 || type == 1026;
+            // R_ARM_GLOB_DAT, R_ARM_JUMP_SLOT
+            case EM_ARM -> type == 21 || type == 22;
+            // R_386_GLOB_DAT / R_X86_64_GLOB_DAT, R_*_JUMP_SLOT
+            case EM_386, EM_X86_64 -> type == 6 || type == 7;
+            // RISC-V has no GLOB_DAT, its GOT entries are R_RISCV_64
+            case EM_RISCV -> type == 2 || type == 5;
+            default -> false;
+        };
+    }
+
+    private static long readSleb128(ByteBuffer elf) {
+        var value = 0L;
+        var shift = 0;
+        byte b;
+        do {
+            b = elf.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (shift < 64 && (b & 0x40) != 0) value |= -1L << shift;
+        return value;
+    }
+
+    private synchronized void searchDemangledSymbols() {
+        if (demangledNames != null) return;
+        var entries = new ArrayList<Object[]>();
+        for (var e : symbols.entrySet()) {
+            var symbol = e.getKey();
+            if (!symbol.startsWith("_Z") && !symbol.startsWith("__dl__Z")) continue;
+            var name = Demangler.demangleName(symbol);
+            if (name != null) entries.add(new Object[] {name[0], name[1], e.getValue()});
+        }
+        entries.sort(
+                Comparator.<Object[], String>comparing(e -> (String) e[0])
+                        .thenComparing(e -> (String) e[1]));
+
+        var size = entries.size();
+        var names = new String[size];
+        var signatures = new String[size];
+        var addresses = new long[size];
+        for (var i = 0; size > i; i++) {
+            var entry = entries.get(i);
+            // Neighbours usually share the qualified name, keep a single copy of it
+            names[i] = i > 0 && names[i - 1].equals(entry[0]) ? names[i - 1] : (String) entry[0];
+            signatures[i] = (String) entry[1];
+            addresses[i] = (Long) entry[2];
+        }
+        demangledSignatures = signatures;
+        demangledAddresses = addresses;
+        demangledNames = names;
+    }
+
+    private int findDemangledName(String name) {
+        int low = 0, high = demangledNames.length;
+        while (high > low) {
+            var mid = (low + high) >>> 1;
+            if (demangledNames[mid].compareTo(name) < 0) {
+                low = mid + 1;
             } else {
-                st_value = elf.getInt();
-                var st_size = elf.getInt();
-                elf.position(elf.position() + 1 + 1 + 2);
-                if (st_size == 0) continue;
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the file offset backing the virtual address {@code vaddr}, or -1. */
+    private long toFileOffset(ByteBuffer elf, long vaddr) {
+        if (vaddr == 0) return -1;
+        var ptr = is64Bit ? 8 : 4;
+        for (var i = 0; phnum > i; i++) {
+            elf.position(phoff + i * phentsize);
+            if (elf.getInt() != PT_LOAD) continue;
+            if (is64Bit) elf.position(elf.position() + 4);
+            var p_offset = getPointer(elf, is64Bit);
+            var p_vaddr = getPointer(elf, is64Bit);
+            elf.position(elf.position() + ptr);
+            var p_filesz = getPointer(elf, is64Bit);
+            if (vaddr >= p_vaddr && p_vaddr + p_filesz > vaddr) {
+                return vaddr - p_vaddr + p_offset;
+            }
+        }
+        return -1;
+    }
+
+    private static String getString(ByteBuffer elf, int off) {
+        var length = 0;
+        //noinspection StatementWithEmptyBody
+        for (; elf.get(off + length) != 0; length++)
+            ;
+        var bytes = new byte[length];
+        elf.position(off);
+        elf.get(bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Visits the named symbols defined in {@code table}, an entry of {@link #symbolTables}.
+     * Returns false if the visitor stopped early.
+     */
+    private static boolean searchSymbols(
+            SymbolVisitor visitor, long base, ByteBuffer elf, boolean is64Bit, long[] table)
+            throws IOException {
+        var sym_off = (int) table[0];
+        var sym_size = table[1];
+        var sym_flags = table[2];
+        var str_off = (int) table[3];
+        var str_size = table[4];
+        var str_flags = table[5];
+
+        var sym_ent = is64Bit ? 24 : 16;
+        ByteBuffer strtab;
+        if ((str_flags & SHF_COMPRESSED) != 0) {
+            // Names are read at arbitrary st_name offsets, which a stream cannot serve, so the
+            // string table is inflated once; its size is capped by the checked ch_size
+            str_size = getUncompressedSize(elf, is64Bit, str_off, str_size);
+            var str_in = openCompressed(elf, is64Bit, str_off, str_size);
+            if (str_in == null) return true;
+            var strings = new byte[(int) str_size];
+            try (var in = str_in) {
+                readFully(in, strings, strings.length);
             }
-            if (st_name == SHN_UNDEF) continue;
-            var length = -1;
-            //noinspection StatementWithEmptyBody
-            while (strings[st_name + ++length] != 0)
-                ;
-            if (length == 0) continue;
-            result.put(new String(strings, st_name, length), base + st_value);
+            strtab = ByteBuffer.wrap(strings);
+            str_off = 0;
+        } else {
+            strtab = elf.duplicate();
+        }
+        InputStream sym_in = null;
+        if ((sym_flags & SHF_COMPRESSED) != 0) {
+            sym_size = getUncompressedSize(elf, is64Bit, sym_off, sym_size);
+            sym_in = openCompressed(elf, is64Bit, sym_off, sym_size);
+            if (sym_in == null) return true;
         }
+        var sym_count = (int) (sym_size / sym_ent);
+        if (sym_count == 0 || str_size == 0) {
+            if (sym_in != null) sym_in.close();
+            return true;
+        }
+
+        ByteBuffer chunk;
+        if (sym_in == null) {
+            chunk = elf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            chunk.position(sym_off);
+        } else {
+            chunk = ByteBuffer.allocate(sym_ent * SYMBOLS_PER_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            chunk.limit(0);
+        }
+        var name = new byte[64];
+
+        try {
+            for (var n = 0; sym_count > n; n++) {
+                if (sym_in != null && !chunk.hasRemaining()) {
+                    var length = Math.min(sym_count - n, SYMBOLS_PER_CHUNK) * sym_ent;
+                    readFully(sym_in, chunk.array(), length);
+                    chunk.position(0).limit(length);
+                }
+                var st_name = chunk.getInt();
+                long st_value, st_size;
+                byte st_info;
+                int st_shndx;
+                if (is64Bit) {
+                    st_info = chunk.get();
+                    chunk.get();
+                    st_shndx = chunk.getShort() & 0xffff;
+                    st_value = chunk.getLong();
+                    st_size = chunk.getLong();
+                } else {
+                    st_value = chunk.getInt();
+                    st_size = chunk.getInt();
+                    st_info = chunk.get();
+                    chunk.get();
+                    st_shndx = chunk.getShort() & 0xffff;
+                }
+                if (st_shndx == SHN_UNDEF) continue;
+                if (st_name == 0 || st_name >= str_size) continue;
+                var name_length = 0;
+                for (var off = str_off + st_name; strtab.get(off + name_length) != 0; ) {
+                    if (++name_length == name.length) name = Arrays.copyOf(name, name_length * 2);
+                }
+                if (name_length == 0) continue;
+                strtab.position(str_off + st_name);
+                strtab.get(name, 0, name_length);
+                if (!visitor.visitSymbol(
+                        name,
+                        0,
+                        name_length,
+                        base + st_value,
+                        st_size,
+                        st_info & 0xf,
+                        (st_info & 0xff) >>> 4)) {
+                    return false;
+                }
+            }
+        } finally {
+            if (sym_in != null) sym_in.close();
+        }
+        return true;
     }
 
-    private static long getPointer(MappedByteBuffer elf, boolean is64Bit) {
+    /** Returns {@code ch_size} of the section at {@code off}, compressed to {@code size}. */
+    private static long getUncompressedSize(ByteBuffer elf, boolean is64Bit, int off, long size) {
+        var ch_size = is64Bit ? elf.getLong(off + 8) : elf.getInt(off + 4) & 0xffffffffL;
+        if (ch_size < 0 || ch_size > Integer.MAX_VALUE || ch_size > size * MAX_INFLATE_RATIO) {
+            throw new IllegalArgumentException("Bad ch_size: " + ch_size);
+        }
+        return ch_size;
+    }
+
+    /**
+     * Returns a stream inflating the {@code SHF_COMPRESSED} section at {@code off}, or null if
+     * the compression type is not supported.
+     */
+    private static InputStream openCompressed(
+            ByteBuffer elf, boolean is64Bit, int off, long size) {
+        var ch_type = elf.getInt(off);
+        if (ch_type != ELFCOMPRESS_ZLIB) {
+            // ELFCOMPRESS_ZSTD has no decoder in the platform
+            return null;
+        }
+        var chdr_size = is64Bit ? 24 : 12;
+        var data = elf.duplicate();
+        data.position(off + chdr_size);
+        var in = new InputStream() {
+            @Override
+            public int read() {
+                return data.hasRemaining() ? data.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!data.hasRemaining()) return -1;
+                len = Math.min(len, data.remaining());
+                data.get(b, off, len);
+                return len;
+            }
+        };
+        return new InflaterInputStream(in, new Inflater(), INFLATE_BUFFER_SIZE) {
+            private long remaining = size;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0) return -1;
+                var n = super.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                inf.end();
+                super.close();
+            }
+        };
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        for (var off = 0; len > off; ) {
+            var n = in.read(b, off, len - off);
+            if (n < 0) throw new EOFException();
+            off += n;
+        }
+    }
+
+    private static long getPointer(ByteBuffer elf, boolean is64Bit) {
         return is64Bit ? elf.getLong() : elf.getInt();
     }
 
@@ -222,4 +846,207 @@ public class ElfImg {
     public Map<String, Long> getSymbols() {
         return symbols;
     }
+
+    /**
+     * Streams the defined, named symbols of the tables searched when the image was parsed to
+     * {@code visitor}, whether or not they were retained. Nothing is allocated per symbol, and
+     * a symbol present in both {@code .dynsym} and {@code .symtab} is visited twice.
+     */
+    public synchronized void visitSymbols(SymbolVisitor visitor) {
+        if (elf == null) return;
+        var elf = this.elf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (var table : symbolTables) {
+                if (!searchSymbols(visitor, bias, elf, is64Bit, table)) break;
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Looks up a C++ symbol by its demangled name, e.g. {@code art::ArtMethod::Invoke}. If {@code
+     * name} contains a parameter list, e.g. {@code art::Thread::Current()}, it must match the
+     * whole signature without the return type instead, which selects one of several overloads.
+     *
+     * <p>The demangled names are computed on the first call.
+     */
+    public synchronized long getDemangledSymbolAddress(String name) {
+        searchDemangledSymbols();
+        var found = findDemangledSymbol(name, null);
+        // The parameter list does not necessarily start at the first '(', as in
+        // X::operator()(int) or f<void (*)(int)>(int), so try each until a qualified name matches
+        for (var i = name.indexOf('('); found < 0 && i >= 0; i = name.indexOf('(', i + 1)) {
+            found = findDemangledSymbol(name.substring(0, i), name);
+        }
+        return found < 0 ? 0 : demangledAddresses[found];
+    }
+
+    private int findDemangledSymbol(String qualifiedName, String signature) {
+        var found = -1;
+        for (var i = findDemangledName(qualifiedName); demangledNames.length > i; i++) {
+            if (!demangledNames[i].equals(qualifiedName)) break;
+            if (signature != null && !demangledSignatures[i].equals(signature)) continue;
+            if (found < 0 || demangledAddresses[found] == demangledAddresses[i]) {
+                // Complete and base object constructors are often aliases
+                found = i;
+            } else {
+                throw new UnsupportedOperationException(
+                        "Multiple symbols were found: '"
+                                + demangledSignatures[found]
+                                + "', '"
+                                + demangledSignatures[i]
+                                + '\'');
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the demangled signatures and addresses of all C++ symbols named {@code prefix} or
+     * nested in it, e.g. all members of {@code art::ArtMethod}. A {@code prefix} ending with
+     * {@code ::} only matches nested names.
+     */
+    public synchronized Map<String, Long> getDemangledSymbols(String prefix) {
+        searchDemangledSymbols();
+        var scope = prefix.endsWith("::") ? prefix : prefix + "::";
+        var result = new LinkedHashMap<String, Long>();
+        for (var i = findDemangledName(prefix); demangledNames.length > i; i++) {
+            var name = demangledNames[i];
+            if (!name.startsWith(prefix)) break;
+            if (name.equals(prefix) || name.startsWith(scope)) {
+                result.put(demangledSignatures[i], demangledAddresses[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the addresses of the GOT slots the dynamic linker fills in for {@code symbol}, or an
+     * empty array if the image does not import it.
+     */
+    public long[] getImportSlots(String symbol) {
+        var slots = imports().get(symbol);
+        return slots == null ? new long[0] : slots.clone();
+    }
+
+    /** Resolves the GOT slots of each of {@code symbols}, see {@link #getImportSlots(String)}. */
+    public long[][] getImportSlots(String... symbols) {
+        var imports = imports();
+        var result = new long[symbols.length][];
+        for (var i = 0; symbols.length > i; i++) {
+            var slots = imports.get(symbols[i]);
+            result[i] = slots == null ? new long[0] : slots.clone();
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the GOT slots of each of {@code symbols} across all {@code images}; {@code
+     * result[i]} holds the slots of {@code symbols[i]} in every image importing it.
+     */
+    public static long[][] getImportSlots(Iterable<ElfImg> images, String... symbols) {
+        var result = new long[symbols.length][0];
+        for (var image : images) {
+            var slots = image.getImportSlots(symbols);
+            for (var i = 0; symbols.length > i; i++) {
+                if (slots[i].length == 0) continue;
+                var merged = Arrays.copyOf(result[i], result[i].length + slots[i].length);
+                System.arraycopy(slots[i], 0, merged, result[i].length, slots[i].length);
+                result[i] = merged;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the GOT slots of every symbol referenced by a {@code GLOB_DAT} or {@code
+     * JUMP_SLOT} relocation in {@code DT_JMPREL}, {@code DT_RELA}, {@code DT_REL} or the Android
+     * packed relocation tables. Absolute data relocations are left out, except {@code
+     * R_RISCV_64} with a zero addend, which is how RISC-V fills its GOT.
+     */
+    public Map<String, long[]> getImports() {
+        var result = new HashMap<String, long[]>();
+        for (var entry : imports().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().clone());
+        }
+        return result;
+    }
+
+    private synchronized Map<String, long[]> imports() {
+        var imports = this.imports;
+        if (imports == null) imports = this.imports = searchImports();
+        return imports;
+    }
+
+    public boolean is64Bit() {
+        return is64Bit;
+    }
+
+    /** Returns the {@code e_machine} of the image, e.g. 183 for aarch64, or 0 if not parsed. */
+    public int getMachine() {
+        return machine;
+    }
+
+    /**
+     * Returns the difference between the addresses the image is mapped at and its virtual
+     * addresses, or 0 if symbol addresses are reported as raw {@code st_value}s.
+     */
+    public long getBias() {
+        return bias;
+    }
+
+    /**
+     * Returns the {@code PT_LOAD} segments of the image as {@code {address, p_filesz, p_memsz,
+     * p_flags, p_offset}}, where {@code address} is {@code p_vaddr} plus the bias. The returned
+     * arrays must not be modified.
+     */
+    public long[][] getLoadSegments() {
+        return loadSegments;
+    }
+
+    /** Returns the {@code NT_GNU_BUILD_ID} of the image as a hex string, or null if it has none. */
+    public String getBuildId() {
+        return buildId;
+    }
+
+    /** Returns the {@code DT_NEEDED} entries of the image. */
+    public List<String> getDependencies() {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * Drops the symbols and indexes of the image and releases its contents. A buffer passed in
+     * by the caller is left alone. The image is empty afterwards.
+     *
+     * <p>A file mapped by {@link #ElfImg(String, boolean, SymbolFilter)} is unmapped through
+     * {@code java.nio.NioUtils.freeDirectBuffer}, a hidden API on the greylist that runs the
+     * buffer's own unmapper, so the mapping is never released twice. Should a release block
+     * it, the file stays mapped until the buffer is collected; the pages are clean and file
+     * backed, so that costs address space rather than memory.
+     */
+    @Override
+    public synchronized void close() {
+        var elf = this.elf;
+        this.elf = null;
+        symbols.clear();
+        dependencies.clear();
+        symbolTables.clear();
+        imports = null;
+        demangledNames = null;
+        demangledSignatures = null;
+        demangledAddresses = null;
+        dynSize = 0;
+        loadSegments = new long[0][];
+        buildId = null;
+        if (elf != null && ownsBuffer) unmap(elf);
+    }
+
+    /** Unmaps a buffer mapped from a file, see {@link #close()}. */
+    static void unmap(ByteBuffer buffer) {
+        if (freeDirectBuffer == null) return;
+        try {
+            freeDirectBuffer.invoke(null, buffer);
+        } catch (ReflectiveOperationException ignored) {
+        }
+    }
 }
@@ -23,21 +23,52 @@ import android.system.Os;
 
 import sun.misc.Unsafe;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
 import java.util.Random;
 
 public class ElfLoader {
+    private static final int JNI_OK = 0;
     private static final int JNI_ERR = -1;
     private static final int JNI_VERSION_1_2 = 0x00010002;
     private static final int JNI_VERSION_1_4 = 0x00010004;
     private static final int JNI_VERSION_1_6 = 0x00010006;
-    private static final int SHELLCODE_SIZE = 0x200;
-
-    private static final Unsafe theUnsafe;
+    private static final int JNI_GET_JAVA_VM_INDEX = 219;
+    private static final int RTLD_NOW = 2;
+    private static final int ANDROID_DLEXT_RESERVED_ADDRESS = 0x1;
+    private static final int ANDROID_DLEXT_USE_LIBRARY_FD = 0x10;
+    private static final int ANDROID_DLEXT_FORCE_LOAD = 0x40;
+    private static final int PF_X = 0x1;
+    private static final int MADV_HUGEPAGE = 14;
+    private static final int MADV_COLLAPSE = 25;
+    private static final long HUGE_PAGE_SIZE = 2 << 20;
+
+    // Data cache clean / instruction cache invalidate routine, see flushInstructionCache
+    private static final int[] CACHE_FLUSH_ARM64 = {
+        0xaa0003e2, 0xd50b7b22, 0x91004042, 0xeb01005f, 0x54ffffa3, 0xd5033b9f,
+        0xaa0003e2, 0xd50b7522, 0x91004042, 0xeb01005f, 0x54ffffa3, 0xd5033b9f,
+        0xd5033fdf, 0xd65f03c0,
+    };
+
+    // Data page
+    private static final int CALL_ARGS_OFFSET = 0;
+    private static final int CALL_MAX_ARGS = 6;
+    private static final int SCRATCH_OFFSET = 0x40;
+    private static final int EXTINFO_OFFSET = 0x80;
+    private static final int STRING_OFFSET = 0x100;
+
+    static final Unsafe theUnsafe;
     private static final Field artMethodField;
     private static final Method nativeMethod;
     private static ElfLoader instance;
@@ -54,7 +85,7 @@ public class ElfLoader {
         artMethodField = field;
 
         try {
-            nativeMethod = ElfLoader.class.getDeclaredMethod("a");
+            nativeMethod = ElfLoader.class.getDeclaredMethod("a", long.class);
 
             @SuppressLint("DiscouragedPrivateApi")
             var theUnsafeField = Unsafe.class.getDeclaredField("theUnsafe");
@@ -67,8 +98,24 @@ public class ElfLoader {
         }
     }
 
-    private long mmapAddress;
-    private int libraryFdOffset;
+    private final HashMap<Long, Integer> references = new HashMap<>();
+    private final HashMap<Long, String> libraryPaths = new HashMap<>();
+    private final HashMap<Long, long[]> reservations = new HashMap<>();
+    private long codeAddress;
+    private long dataAddress;
+    private String arch;
+    private long dlopen;
+    private long androidDlopenExt;
+    private long dlsym;
+    private long dlerror;
+    private long dlclose;
+    private long[] nativeBridgeFunctions;
+    private long javaVM;
+    private ElfImg libc;
+    private CodeCache codeCache;
+    private long cacheFlush;
+    private File pageProfileDirectory;
+    private File temporaryFileDirectory;
 
     private ElfLoader() {}
 
@@ -110,7 +157,16 @@ public class ElfLoader {
         theUnsafe.putByte(addr + len, (byte) 0);
     }
 
-    private static void copyMemory(Object srcArray, long dstAddr, int len) {
+    private static void putPointer(long addr, long value) {
+        var u = theUnsafe;
+        if (u.addressSize() == 8) {
+            u.putLong(addr, value);
+        } else {
+            u.putInt(addr, (int) value);
+        }
+    }
+
+    static void copyMemory(Object srcArray, long dstAddr, int len) {
         var u = theUnsafe;
         try {
             u.copyMemoryFromPrimitiveArray(srcArray, 0, dstAddr, len);
@@ -124,51 +180,40 @@ public class ElfLoader {
         u.copyMemory(srcAddr, dstAddr, len);
     }
 
-    private static void copyMemory(long srcAddr, Object dstArray, int len) {
+    static void copyMemory(long srcAddr, Object dstArray, int len) {
+        copyMemory(srcAddr, dstArray, 0, len);
+    }
+
+    static void copyMemory(long srcAddr, Object dstArray, int dstOffset, int len) {
         var u = theUnsafe;
         try {
-            u.copyMemoryToPrimitiveArray(srcAddr, dstArray, 0, len);
+            u.copyMemoryToPrimitiveArray(srcAddr, dstArray, dstOffset, len);
             return;
         } catch (NoSuchMethodError ignored) {
         }
         Object[] arr = {dstArray};
         int dstAddr =
                 u.getInt(arr, u.arrayBaseOffset(Object[].class))
-                        + u.arrayBaseOffset(dstArray.getClass());
+                        + u.arrayBaseOffset(dstArray.getClass())
+                        + dstOffset;
         u.copyMemory(srcAddr, dstAddr, len);
     }
 
     private static long[] getNativeBridgeFunctions() {
         var elf = new ElfImg("/libnativebridge.so");
         long dlopen = elf.getSymbolAddress("NativeBridgeLoadLibrary");
-        long dlsym, dlerror;
+        long dlsym, dlerror, dlclose;
         if (dlopen != 0) {
             dlsym = elf.getSymbolAddress("NativeBridgeGetTrampoline");
             dlerror = elf.getSymbolAddress("NativeBridgeGetError");
+            dlclose = elf.getSymbolAddress("NativeBridgeUnloadLibrary");
         } else {
             dlopen = elf.getSymbolAddress("_ZN7android23NativeBridgeLoadLibraryEPKci");
             dlsym = elf.getSymbolAddress("_ZN7android25NativeBridgeGetTrampolineEPvPKcS2_j");
             dlerror = elf.getSymbolAddress("_ZN7android20NativeBridgeGetErrorEv");
+            dlclose = elf.getSymbolAddress("_ZN7android25NativeBridgeUnloadLibraryEPv");
         }
-        return dlopen == 0 || dlsym == 0 ? new long[3] : new long[] {dlopen, dlsym, dlerror};
-    }
-
-    private static String toJavaString(long ptr) {
-        final var maxStringSize = 1024;
-
-        if (ptr >= 0 && ptr < 0x8000) {
-            return "";
-        }
-
-        var buf = new byte[maxStringSize + 1];
-        copyMemory(ptr, buf, maxStringSize);
-
-        var length = 0;
-        for (; ; length++) {
-            if (buf[length] == 0) break;
-        }
-
-        return new String(buf, 0, length);
+        return dlopen == 0 || dlsym == 0 ? null : new long[] {dlopen, dlsym, dlerror, dlclose};
     }
 
     private static String getJniReturnedMessage(String path, int version) {
@@ -179,6 +224,19 @@ public class ElfLoader {
         };
     }
 
+    private static FileDescriptor newFileDescriptor(int fd) {
+        var descriptor = new FileDescriptor();
+        try {
+            //noinspection JavaReflectionMemberAccess
+            var method = FileDescriptor.class.getDeclaredMethod("setInt$", int.class);
+            method.setAccessible(true);
+            method.invoke(descriptor, fd);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+        return descriptor;
+    }
+
     private static int getFdInt(FileDescriptor fd) {
         try {
             //noinspection JavaReflectionMemberAccess
@@ -191,9 +249,9 @@ public class ElfLoader {
         }
     }
 
-    private static long callNativeMethod() {
+    private static long callNativeMethod(long args) {
         try {
-            var r = nativeMethod.invoke(null);
+            var r = nativeMethod.invoke(null, args);
             assert r != null;
             return (long) r;
         } catch (IllegalAccessException e) {
@@ -209,242 +267,191 @@ public class ElfLoader {
     }
 
     @SuppressWarnings("JavaJniMissingFunction")
-    private static native long a();
-
-    private void initTrampoline(long mem, String arch, long dlopen, long dlsym, long dlerror) {
+    private static native long a(long args);
+
+    /**
+     * Writes the stub behind {@link #a(long)} to {@code mem}. It calls the function in the
+     * first slot of the argument block passed to it with the following six slots as arguments,
+     * stores the {@code JNIEnv*} into the eighth slot and returns the result. Returns the
+     * length of the stub.
+     */
+    private static int initCallStub(long mem, String arch) {
         Object code;
         int length;
-        long[] nativeBridgeFunctions = null;
 
         switch (arch) {
             case "arm64" -> {
-                int[] shellcode = {
-                    0xd10083ff, 0xf9000ffe, 0xf9400002, 0xf9436c42, 0x910023e1, 0xd63f0040,
-                    0x10000f40, 0x52800041, 0xaa1f03e2, 0xaa1f03e3, 0x180003e5, 0x34000045,
-                    0x100002c2, 0x58000424, 0xd63f0080, 0xb40001a0, 0xf9000be0, 0x10000461,
-                    0x580003c2, 0xd63f0040, 0xaa0003e2, 0xb4000080, 0xa94087e0, 0xd63f0040,
-                    0x14000007, 0x18000040, 0x14000005, 0x00010006, 0x580002c0, 0xd63f0000,
-                    0xb2440000, 0xf9400ffe, 0x910083ff, 0xd65f03c0, 0x00000050, 0x00000000,
-                    0x00000000, 0x00000000, 0x00000000, 0x00000000, 0x00000000, 0x00000000,
-                    0x00000000, 0x00000000, 0x00000000, 0x00000000,
+                int[] stub = {
+                    0xa9bf7bfd, 0x910003fd, 0xaa0203f0, 0xf9001e00, 0xa9408600, 0xa9418e02,
+                    0xa9429604, 0xf9400211, 0xd63f0220, 0xa8c17bfd, 0xd65f03c0,
                 };
-                code = shellcode;
-                length = shellcode.length * 4;
-                libraryFdOffset = length - 4 * 5;
+                code = stub;
+                length = stub.length * 4;
             }
             case "x86_64" -> {
-                byte[] shellcode = {
-                    (byte) 0x41, (byte) 0x56, (byte) 0x53, (byte) 0x50, (byte) 0x48, (byte) 0x89,
-                    (byte) 0xe6, (byte) 0x48, (byte) 0x89, (byte) 0x3e, (byte) 0x48, (byte) 0x8b,
-                    (byte) 0x07, (byte) 0xff, (byte) 0x90, (byte) 0xd8, (byte) 0x06, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x48, (byte) 0x8d, (byte) 0x05, (byte) 0xb8, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x00, (byte) 0x48, (byte) 0x8d, (byte) 0x3d, (byte) 0xdf,
-                    (byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x6a, (byte) 0x02, (byte) 0x5e,
-                    (byte) 0xff, (byte) 0x10, (byte) 0x48, (byte) 0x85, (byte) 0xc0, (byte) 0x74,
-                    (byte) 0x2c, (byte) 0x49, (byte) 0x89, (byte) 0xc6, (byte) 0x48, (byte) 0x8d,
-                    (byte) 0x05, (byte) 0xa5, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x48,
-                    (byte) 0x8d, (byte) 0x35, (byte) 0xc6, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x4c, (byte) 0x89, (byte) 0xf7, (byte) 0xff, (byte) 0x10, (byte) 0x48,
-                    (byte) 0x89, (byte) 0xc1, (byte) 0x48, (byte) 0x85, (byte) 0xc0, (byte) 0x74,
-                    (byte) 0x58, (byte) 0x48, (byte) 0x8b, (byte) 0x3c, (byte) 0x24, (byte) 0x4c,
-                    (byte) 0x89, (byte) 0xf6, (byte) 0xff, (byte) 0xd1, (byte) 0x48, (byte) 0x63,
-                    (byte) 0xd8, (byte) 0xeb, (byte) 0x70, (byte) 0x48, (byte) 0x8d, (byte) 0x0d,
-                    (byte) 0x84, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x31, (byte) 0xc0,
-                    (byte) 0xff, (byte) 0x11, (byte) 0x48, (byte) 0x89, (byte) 0xc3, (byte) 0x48,
-                    (byte) 0x8d, (byte) 0x05, (byte) 0x7e, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x48, (byte) 0x8b, (byte) 0x08, (byte) 0x48, (byte) 0x85, (byte) 0xc9,
-                    (byte) 0x74, (byte) 0x4e, (byte) 0x48, (byte) 0x8d, (byte) 0x3d, (byte) 0x85,
-                    (byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x6a, (byte) 0x02, (byte) 0x5e,
-                    (byte) 0xff, (byte) 0xd1, (byte) 0x48, (byte) 0x85, (byte) 0xc0, (byte) 0x74,
-                    (byte) 0x23, (byte) 0x49, (byte) 0x89, (byte) 0xc6, (byte) 0x48, (byte) 0x8d,
-                    (byte) 0x05, (byte) 0x63, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x48,
-                    (byte) 0x8d, (byte) 0x35, (byte) 0x6c, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x4c, (byte) 0x89, (byte) 0xf7, (byte) 0x31, (byte) 0xd2, (byte) 0x31,
-                    (byte) 0xc9, (byte) 0xff, (byte) 0x10, (byte) 0xeb, (byte) 0xa0, (byte) 0xbb,
-                    (byte) 0x06, (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0xeb, (byte) 0x1f,
-                    (byte) 0x48, (byte) 0x8d, (byte) 0x05, (byte) 0x4b, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x00, (byte) 0x48, (byte) 0x8b, (byte) 0x08, (byte) 0x48, (byte) 0x85,
-                    (byte) 0xc9, (byte) 0x74, (byte) 0x0b, (byte) 0x31, (byte) 0xc0, (byte) 0xff,
-                    (byte) 0xd1, (byte) 0x48, (byte) 0x85, (byte) 0xc0, (byte) 0x48, (byte) 0x0f,
-                    (byte) 0x45, (byte) 0xd8, (byte) 0x48, (byte) 0x0f, (byte) 0xba, (byte) 0xeb,
-                    (byte) 0x3c, (byte) 0x48, (byte) 0x89, (byte) 0xd8, (byte) 0x48, (byte) 0x83,
-                    (byte) 0xc4, (byte) 0x08, (byte) 0x5b, (byte) 0x41, (byte) 0x5e, (byte) 0xc3,
+                byte[] stub = {
+                    (byte) 0x53, (byte) 0x48, (byte) 0x89, (byte) 0xd3, (byte) 0x48, (byte) 0x89,
+                    (byte) 0x7b, (byte) 0x38, (byte) 0x48, (byte) 0x8b, (byte) 0x7b, (byte) 0x08,
+                    (byte) 0x48, (byte) 0x8b, (byte) 0x73, (byte) 0x10, (byte) 0x48, (byte) 0x8b,
+                    (byte) 0x53, (byte) 0x18, (byte) 0x48, (byte) 0x8b, (byte) 0x4b, (byte) 0x20,
+                    (byte) 0x4c, (byte) 0x8b, (byte) 0x43, (byte) 0x28, (byte) 0x4c, (byte) 0x8b,
+                    (byte) 0x4b, (byte) 0x30, (byte) 0x31, (byte) 0xc0, (byte) 0xff, (byte) 0x13,
+                    (byte) 0x5b, (byte) 0xc3,
                 };
-                code = shellcode;
-                length = shellcode.length;
-                nativeBridgeFunctions = getNativeBridgeFunctions();
+                code = stub;
+                length = stub.length;
             }
             case "riscv64" -> {
-                char[] shellcode = {
-                    0x7179, 0xf406, 0xf022, 0xec26, 0xe84a, 0x1597, 0x0000, 0xb583, 0x2c65, 0x6190,
-                    0x892a, 0x0517, 0x0000, 0x0513, 0x1ea5, 0x4589, 0x9602, 0xc915, 0x84aa, 0x1517,
-                    0x0000, 0x3503, 0x2b25, 0x6110, 0x0517, 0x0000, 0x0593, 0x0625, 0x8526, 0x9602,
-                    0xc51d, 0x842a, 0x3503, 0x0009, 0x3603, 0x6d85, 0x002c, 0x854a, 0x9602, 0x6522,
-                    0x85a6, 0x9402, 0xa829, 0x1517, 0x0000, 0x3503, 0x28a5, 0x6108, 0x9502, 0x4585,
-                    0x15f2, 0x8d4d, 0xa019, 0x6541, 0x2519, 0x70a2, 0x7402, 0x64e2, 0x6942, 0x6145,
-                    0x8082,
+                int[] stub = {
+                    0xff010113, 0x00113423, 0x00060293, 0x02a2bc23, 0x0082b503, 0x0102b583,
+                    0x0182b603, 0x0202b683, 0x0282b703, 0x0302b783, 0x0002b303, 0x000300e7,
+                    0x00813083, 0x01010113, 0x00008067,
                 };
-                code = shellcode;
-                length = shellcode.length * 2;
+                code = stub;
+                length = stub.length * 4;
             }
             case "arm" -> {
-                int[] shellcode = {
-                    0xe92d48fc, 0xe28db018, 0xe59f2084, 0xe1a05000, 0xe3a01000, 0xe3a04000,
-                    0xe28f0e1e, 0xe12fff32, 0xe3500000, 0x0a000014, 0xe1a06000, 0xe59f2064,
-                    0xe1a00006, 0xe28f1064, 0xe12fff32, 0xe3500000, 0x0a00000a, 0xe1a07000,
-                    0xe5950000, 0xe28d1004, 0xe590236c, 0xe1a00005, 0xe12fff32, 0xe59d0004,
-                    0xe1a01006, 0xe12fff37, 0xe1a04fc0, 0xea000005, 0xe59f0000, 0xea000003,
-                    0x00010006, 0xe59f0018, 0xe12fff30, 0xe3a04201, 0xe1a01004, 0xe24bd010,
-                    0xe8bd88f0,
+                int[] stub = {
+                    0xe92d4070, 0xe1a04002, 0xe584001c, 0xe5940014, 0xe5941018, 0xe92d0003,
+                    0xe5940004, 0xe5941008, 0xe594200c, 0xe5943010, 0xe594c000, 0xe12fff3c,
+                    0xe28dd008, 0xe8bd8070,
                 };
-                code = shellcode;
-                length = shellcode.length * 4;
+                code = stub;
+                length = stub.length * 4;
             }
             case "x86" -> {
-                byte[] shellcode = {
-                    (byte) 0x55, (byte) 0x89, (byte) 0xe5, (byte) 0x53, (byte) 0x57, (byte) 0x56,
-                    (byte) 0x83, (byte) 0xe4, (byte) 0xf0, (byte) 0x83, (byte) 0xec, (byte) 0x10,
-                    (byte) 0xe8, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x5b,
-                    (byte) 0x81, (byte) 0xc3, (byte) 0x3b, (byte) 0x12, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x8d, (byte) 0x45, (byte) 0x08, (byte) 0x8b, (byte) 0x08, (byte) 0x8b,
-                    (byte) 0x11, (byte) 0x83, (byte) 0xec, (byte) 0x08, (byte) 0x50, (byte) 0x51,
-                    (byte) 0xff, (byte) 0x92, (byte) 0x6c, (byte) 0x03, (byte) 0x00, (byte) 0x00,
-                    (byte) 0x83, (byte) 0xc4, (byte) 0x08, (byte) 0x8d, (byte) 0xb3, (byte) 0xb4,
-                    (byte) 0xef, (byte) 0xff, (byte) 0xff, (byte) 0x6a, (byte) 0x00, (byte) 0x56,
-                    (byte) 0xff, (byte) 0x93, (byte) 0x8e, (byte) 0xee, (byte) 0xff, (byte) 0xff,
-                    (byte) 0x83, (byte) 0xc4, (byte) 0x10, (byte) 0x85, (byte) 0xc0, (byte) 0x74,
-                    (byte) 0x2f, (byte) 0x89, (byte) 0xc7, (byte) 0x83, (byte) 0xec, (byte) 0x08,
-                    (byte) 0x8d, (byte) 0x83, (byte) 0xa6, (byte) 0xee, (byte) 0xff, (byte) 0xff,
-                    (byte) 0x50, (byte) 0x57, (byte) 0xff, (byte) 0x93, (byte) 0x92, (byte) 0xee,
-                    (byte) 0xff, (byte) 0xff, (byte) 0x83, (byte) 0xc4, (byte) 0x10, (byte) 0x85,
-                    (byte) 0xc0, (byte) 0x74, (byte) 0x50, (byte) 0x83, (byte) 0xec, (byte) 0x08,
-                    (byte) 0x57, (byte) 0xff, (byte) 0x75, (byte) 0x08, (byte) 0xff, (byte) 0xd0,
-                    (byte) 0x83, (byte) 0xc4, (byte) 0x10, (byte) 0x89, (byte) 0xc7, (byte) 0x89,
-                    (byte) 0xc2, (byte) 0xc1, (byte) 0xfa, (byte) 0x1f, (byte) 0xeb, (byte) 0x5e,
-                    (byte) 0xff, (byte) 0x93, (byte) 0x96, (byte) 0xee, (byte) 0xff, (byte) 0xff,
-                    (byte) 0x89, (byte) 0xc7, (byte) 0x8b, (byte) 0x83, (byte) 0x9a, (byte) 0xee,
-                    (byte) 0xff, (byte) 0xff, (byte) 0x85, (byte) 0xc0, (byte) 0x74, (byte) 0x47,
-                    (byte) 0x89, (byte) 0x7c, (byte) 0x24, (byte) 0x08, (byte) 0x83, (byte) 0xec,
-                    (byte) 0x08, (byte) 0x6a, (byte) 0x00, (byte) 0x56, (byte) 0xff, (byte) 0xd0,
-                    (byte) 0x83, (byte) 0xc4, (byte) 0x10, (byte) 0x85, (byte) 0xc0, (byte) 0x74,
-                    (byte) 0x1f, (byte) 0x89, (byte) 0xc7, (byte) 0x8d, (byte) 0x83, (byte) 0xa6,
-                    (byte) 0xee, (byte) 0xff, (byte) 0xff, (byte) 0x6a, (byte) 0x00, (byte) 0x6a,
-                    (byte) 0x00, (byte) 0x50, (byte) 0x57, (byte) 0xff, (byte) 0x93, (byte) 0x9e,
-                    (byte) 0xee, (byte) 0xff, (byte) 0xff, (byte) 0xeb, (byte) 0xa9, (byte) 0x31,
-                    (byte) 0xd2, (byte) 0xbf, (byte) 0x06, (byte) 0x00, (byte) 0x01, (byte) 0x00,
-                    (byte) 0xeb, (byte) 0x1a, (byte) 0x8b, (byte) 0x83, (byte) 0xa2, (byte) 0xee,
-                    (byte) 0xff, (byte) 0xff, (byte) 0x85, (byte) 0xc0, (byte) 0x8b, (byte) 0x7c,
-                    (byte) 0x24, (byte) 0x08, (byte) 0x74, (byte) 0x07, (byte) 0xff, (byte) 0xd0,
-                    (byte) 0x85, (byte) 0xc0, (byte) 0x0f, (byte) 0x45, (byte) 0xf8, (byte) 0xba,
-                    (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x10, (byte) 0x89, (byte) 0xf8,
-                    (byte) 0x8d, (byte) 0x65, (byte) 0xf4, (byte) 0x5e, (byte) 0x5f, (byte) 0x5b,
-                    (byte) 0x5d, (byte) 0xc3,
+                byte[] stub = {
+                    (byte) 0x53, (byte) 0x8b, (byte) 0x5c, (byte) 0x24, (byte) 0x10, (byte) 0x8b,
+                    (byte) 0x44, (byte) 0x24, (byte) 0x08, (byte) 0x89, (byte) 0x43, (byte) 0x1c,
+                    (byte) 0xff, (byte) 0x73, (byte) 0x18, (byte) 0xff, (byte) 0x73, (byte) 0x14,
+                    (byte) 0xff, (byte) 0x73, (byte) 0x10, (byte) 0xff, (byte) 0x73, (byte) 0x0c,
+                    (byte) 0xff, (byte) 0x73, (byte) 0x08, (byte) 0xff, (byte) 0x73, (byte) 0x04,
+                    (byte) 0xff, (byte) 0x13, (byte) 0x83, (byte) 0xc4, (byte) 0x18, (byte) 0x5b,
+                    (byte) 0xc3,
                 };
-                code = shellcode;
-                length = shellcode.length;
-                nativeBridgeFunctions = getNativeBridgeFunctions();
+                code = stub;
+                length = stub.length;
             }
             default -> throw new RuntimeException(arch + " is unsupported");
         }
 
-        var u = theUnsafe;
         copyMemory(code, mem, length);
-        if (u.addressSize() == 8) {
-            u.putLong(mem += length, dlopen);
-            u.putLong(mem += 8, dlsym);
-            u.putLong(mem += 8, dlerror);
-            if (nativeBridgeFunctions != null) {
-                u.putLong(mem += 8, nativeBridgeFunctions[0]);
-                u.putLong(mem += 8, nativeBridgeFunctions[1]);
-                u.putLong(mem += 8, nativeBridgeFunctions[2]);
-            }
-            mem += 8;
-        } else {
-            u.putInt(mem += length, (int) dlopen);
-            u.putInt(mem += 4, (int) dlsym);
-            u.putInt(mem += 4, (int) dlerror);
-            if (nativeBridgeFunctions != null) {
-                u.putInt(mem += 4, (int) nativeBridgeFunctions[0]);
-                u.putInt(mem += 4, (int) nativeBridgeFunctions[1]);
-                u.putInt(mem += 4, (int) nativeBridgeFunctions[2]);
-            }
-            mem += 4;
-        }
-
-        putString(mem, "JNI_OnLoad");
+        return length;
     }
 
-    private boolean ensureInitialized() {
-        if (mmapAddress != 0) return true;
+    private synchronized boolean ensureInitialized() {
+        if (codeAddress != 0) return true;
         try {
             var u = theUnsafe;
-            var mem = mmapAddress = Os.mmap(0, u.pageSize(), 0x7, 0x22, FileDescriptor.in, 0);
-            registerNative(nativeMethod, mem);
-
+            var pageSize = u.pageSize();
             var arch = ApiBridge.VMRuntime_vmInstructionSet();
             var is64Bit = u.addressSize() == 8;
-            var hasMemoryElfSupport = "arm64".equals(arch);
             var dl = new ElfImg(is64Bit ? "/system/lib64/libdl.so" : "/system/lib/libdl.so");
 
-            long dlopen, dlsym, dlerror;
+            long dlopen, androidDlopenExt, dlsym, dlerror, dlclose;
 
             if (dl.isEmpty()) {
                 // sdk < 26
                 var linker =
                         new ElfImg(is64Bit ? "/system/bin/linker64" : "/system/bin/linker", true);
-                if (hasMemoryElfSupport) {
-                    dlopen = linker.getSymbolAddressBestMatch("android_dlopen_ext");
-                } else {
-                    dlopen = linker.getSymbolAddress("__dl_dlopen");
-                    if (dlopen == 0) {
-                        dlopen = linker.getSymbolAddressBestMatch("8__dlopen");
-                    }
+                androidDlopenExt = linker.getSymbolAddress("__dl_android_dlopen_ext");
+                if (androidDlopenExt == 0) {
+                    // extern "C", so never mangled
+                    androidDlopenExt = linker.getSymbolAddress("android_dlopen_ext");
+                }
+                dlopen = linker.getSymbolAddress("__dl_dlopen");
+                if (dlopen == 0) {
+                    dlopen = linker.getDemangledSymbolAddress("__dlopen");
                 }
                 if (dlopen == 0) {
                     throw new UnsupportedOperationException("dlopen not found in linker");
                 }
                 dlsym = linker.getSymbolAddress("__dl_dlsym");
                 if (dlsym == 0) {
-                    dlsym = linker.getSymbolAddressBestMatch("7__dlsym");
+                    dlsym = linker.getDemangledSymbolAddress("__dlsym");
                 }
                 if (dlsym == 0) {
                     throw new UnsupportedOperationException("dlsym not found in linker");
                 }
                 dlerror = linker.getSymbolAddress("__dl_dlerror");
                 if (dlerror == 0) {
-                    dlerror = linker.getSymbolAddressBestMatch("9__dlerror");
+                    dlerror = linker.getDemangledSymbolAddress("__dlerror");
+                }
+                dlclose = linker.getSymbolAddress("__dl_dlclose");
+                if (dlclose == 0) {
+                    dlclose = linker.getDemangledSymbolAddress("__dlclose");
                 }
             } else {
-                dlopen = dl.getSymbolAddress(hasMemoryElfSupport ? "android_dlopen_ext" : "dlopen");
+                dlopen = dl.getSymbolAddress("dlopen");
                 if (dlopen == 0) {
                     throw new UnsupportedOperationException("dlopen not found in libdl.so");
                 }
+                androidDlopenExt = dl.getSymbolAddress("android_dlopen_ext");
                 dlsym = dl.getSymbolAddress("dlsym");
                 if (dlsym == 0) {
                     throw new UnsupportedOperationException("dlsym not found in libdl.so");
                 }
                 dlerror = dl.getSymbolAddress("dlerror");
+                dlclose = dl.getSymbolAddress("dlclose");
             }
 
-            initTrampoline(mem, arch, dlopen, dlsym, dlerror);
+            // The stubs are assembled in the data page and copied into the code cache
+            var data = Os.mmap(0, pageSize, 0x3, 0x22, FileDescriptor.in, 0);
+            var cache = new CodeCache(this);
+            long code;
+            int length;
+            try {
+                length = initCallStub(data, arch);
+                code = cache.install(data, length);
+            } catch (ErrnoException | RuntimeException e) {
+                cache.release();
+                Os.munmap(data, pageSize);
+                throw e;
+            }
+            copyMemory(new byte[length], data, length);
+            registerNative(nativeMethod, code);
+
+            this.arch = arch;
+            this.dlopen = dlopen;
+            this.androidDlopenExt = androidDlopenExt;
+            this.dlsym = dlsym;
+            this.dlerror = dlerror;
+            this.dlclose = dlclose;
+            if ("x86".equals(arch) || "x86_64".equals(arch)) {
+                nativeBridgeFunctions = getNativeBridgeFunctions();
+            }
+            dataAddress = data;
+            codeAddress = code;
+            codeCache = cache;
+
+            try {
+                cache.seal();
+            } catch (ErrnoException ignored) {
+                // The stubs keep working from a writable page
+            }
+            if ("arm64".equals(arch)) {
+                try {
+                    cacheFlush = cache.allocate(CACHE_FLUSH_ARM64, CACHE_FLUSH_ARM64.length * 4);
+                } catch (ErrnoException e) {
+                    release();
+                    throw e;
+                }
+            }
             return true;
         } catch (ErrnoException ignored) {
         }
         return false;
     }
 
+    /**
+     * Loads the library at {@code path} and calls its {@code JNI_OnLoad}, if any.
+     *
+     * @return false if the loader could not be initialized
+     * @throws UnsatisfiedLinkError if the library could not be loaded or its {@code JNI_OnLoad}
+     *     failed
+     */
     public boolean load(String path) {
-        if (!ensureInitialized() || path.length() >= 0x1000 - SHELLCODE_SIZE) return false;
-        putString(mmapAddress + SHELLCODE_SIZE, path);
-        var result = callNativeMethod();
-        var msg =
-                result >>> 56 != 0x10
-                        ? getJniReturnedMessage(path, (int) result)
-                        : toJavaString(result & ((1L << 56) - 1));
-        if (msg != null) {
-            throw new UnsatisfiedLinkError(msg);
-        }
-        return true;
+        return open(path) != null;
     }
 
     public boolean load(byte[] elf) {
@@ -456,16 +463,81 @@ public class ElfLoader {
     }
 
     public boolean load(byte[] elf, int off, int len, String libraryId) {
-        // TODO: sdk < 30 support
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
-            throw new UnsupportedOperationException("memfd not available");
-        }
+        return open(elf, off, len, libraryId) != null;
+    }
 
-        // TODO: Supports more architectures
-        if (!"arm64".equals(ApiBridge.VMRuntime_vmInstructionSet())) {
-            throw new UnsupportedOperationException("Function not implemented");
+    /**
+     * Loads the library at {@code path} like {@link #load(String)} and returns a handle to it
+     * that can unload it again, or null if the loader could not be initialized. {@code
+     * JNI_OnLoad} only runs when the library is not already open through this loader.
+     *
+     * @throws UnsatisfiedLinkError if the library could not be loaded or its {@code JNI_OnLoad}
+     *     failed; the library then stays loaded, as with {@link System#loadLibrary}
+     */
+    public NativeLibrary open(String path) {
+        return open(path, false);
+    }
+
+    /**
+     * Loads the library at {@code path} like {@link #open(String)}. If {@code alignHugePages}
+     * is set, the library is loaded into an address range reserved so that its text segment
+     * starts on a 2 MB boundary, and the text is advised with {@code MADV_HUGEPAGE}. See {@link
+     * NativeLibrary#getHugePageSize()} for whether huge pages were obtained.
+     */
+    public NativeLibrary open(String path, boolean alignHugePages) {
+        if (!ensureInitialized()) return null;
+        // A bare soname such as liblog.so is resolved by the linker's search path
+        if (path.indexOf('/') >= 0) {
+            try {
+                path = new File(path).getCanonicalPath();
+            } catch (IOException ignored) {
+            }
+        }
+        long[] reservation = null;
+        if (alignHugePages) {
+            ByteBuffer elf = null;
+            try (var file = new FileInputStream(path)) {
+                var channel = file.getChannel();
+                elf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+                reservation = reserveHugePageAligned(elf);
+            } catch (IOException ignored) {
+            } finally {
+                // Only the program headers were needed, the linker maps the file itself
+                if (elf != null) ElfImg.unmap(elf);
+            }
         }
+        return open(path, path, -1, reservation);
+    }
+
+    public NativeLibrary open(byte[] elf) {
+        return open(elf, 0, elf.length, null);
+    }
 
+    public NativeLibrary open(byte[] elf, String libraryId) {
+        return open(elf, 0, elf.length, libraryId);
+    }
+
+    /**
+     * Loads the library held in {@code elf[off..off + len)} like {@link #open(String)}. It is
+     * named {@code libraryId}, or a random name if that is null.
+     *
+     * <p>The bytes are handed to the linker through an anonymous file, never a path. Libraries
+     * for the architecture a native bridge translates cannot be loaded this way.
+     *
+     * @throws UnsupportedOperationException if the kernel has no {@code memfd_create} and no
+     *     {@link #setTemporaryFileDirectory temporary file directory} is set
+     */
+    public NativeLibrary open(byte[] elf, int off, int len, String libraryId) {
+        return open(elf, off, len, libraryId, false);
+    }
+
+    /**
+     * Loads the library held in {@code elf[off..off + len)} like {@link #open(byte[], int, int,
+     * String)}, aligning its text segment for huge pages if requested, see {@link #open(String,
+     * boolean)}.
+     */
+    public NativeLibrary open(
+            byte[] elf, int off, int len, String libraryId, boolean alignHugePages) {
         if (libraryId == null) {
             var random = new Random();
             char[] chars = new char[16];
@@ -475,57 +547,461 @@ public class ElfLoader {
             libraryId = new String(chars);
         }
 
-        if (!ensureInitialized() || libraryId.length() >= 0x1000 - SHELLCODE_SIZE) return false;
+        if (!ensureInitialized()) return null;
 
-        FileDescriptor fd;
+        var fd = createMemoryFile(libraryId);
         try {
-            fd = Os.memfd_create(libraryId, 0);
-            Os.write(fd, elf, off, len);
+            for (var written = 0; len > written; ) {
+                written += Os.write(fd, elf, off + written, len - written);
+            }
         } catch (ErrnoException | InterruptedIOException e) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException ignored) {
+            }
             throw new RuntimeException(e);
         }
 
-        String libraryName;
-        if (libraryFdOffset != 0) {
-            // aarch64
-            libraryName = libraryId;
-            theUnsafe.putInt(mmapAddress + libraryFdOffset, getFdInt(fd));
+        var reservation =
+                alignHugePages ? reserveHugePageAligned(ByteBuffer.wrap(elf, off, len)) : null;
+
+        // The linker maps the file while loading, the descriptor is not needed afterwards
+        try {
+            return open(libraryId, libraryId, getFdInt(fd), reservation);
+        } finally {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Creates an anonymous file to load a library from. The linker needs a file it can {@code
+     * fstat} and map, which rules out ashmem; memfd is used where the kernel has it, else an
+     * unnamed {@code O_TMPFILE} in the temporary file directory, if one is set.
+     */
+    private FileDescriptor createMemoryFile(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                return Os.memfd_create(name, 0);
+            } catch (ErrnoException ignored) {
+            }
         } else {
-            libraryName = "/proc/self/fd/" + getFdInt(fd);
+            // libcore has no memfd_create before R, the kernel usually does
+            var nr =
+                    switch (arch) {
+                        case "arm64", "riscv64" -> 279;
+                        case "x86_64" -> 319;
+                        case "arm" -> 385;
+                        case "x86" -> 356;
+                        default -> -1;
+                    };
+            var syscall = getLibcSymbol("syscall");
+            // The kernel limits the name to 249 bytes
+            if (nr > 0 && syscall != 0 && name.getBytes().length < 250) {
+                int fd;
+                synchronized (this) {
+                    var address = dataAddress + STRING_OFFSET;
+                    putString(address, name);
+                    fd = (int) callFunction(syscall, nr, address, 0);
+                }
+                if (fd >= 0) return newFileDescriptor(fd);
+            }
         }
-        putString(mmapAddress + SHELLCODE_SIZE, libraryName);
 
-        long result;
+        var directory = getTemporaryFileDirectory();
+        if (directory == null) {
+            throw new UnsupportedOperationException(
+                    "memfd_create is unavailable and no temporary file directory is set");
+        }
+        var isArm = arch.startsWith("arm");
+        try {
+            // O_TMPFILE | O_RDWR
+            var flags = (isArm ? 0x404000 : 0x410000) | 0x2;
+            return Os.open(directory.getPath(), flags, 0600);
+        } catch (ErrnoException e) {
+            throw new UnsupportedOperationException("No anonymous file available", e);
+        }
+    }
 
+    /**
+     * Sets the directory libraries loaded from memory are written to on kernels without {@code
+     * memfd_create} (before Linux 3.17). The file is created unnamed with {@code O_TMPFILE} and
+     * disappears once the library is unloaded, but its contents go through the page cache to
+     * the storage backing the directory, usually flash. Null, the default, makes such loads
+     * fail instead.
+     */
+    public synchronized void setTemporaryFileDirectory(File directory) {
+        temporaryFileDirectory = directory;
+    }
+
+    public synchronized File getTemporaryFileDirectory() {
+        return temporaryFileDirectory;
+    }
+
+    /**
+     * Reserves an inaccessible address range for the image in {@code elf} placed so that each
+     * huge page of its text segment maps a huge page aligned range of the file, which is what
+     * the kernel needs to back file text with huge pages. Returns {@code {address, size,
+     * text_start, text_end}}, or null if the image has no text segment or nothing could be
+     * reserved.
+     */
+    private static long[] reserveHugePageAligned(ByteBuffer elf) {
+        long[][] segments;
+        try (var image = new ElfImg(elf, 0, false, SymbolFilter.NONE)) {
+            segments = image.getLoadSegments();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        long pageSize = theUnsafe.pageSize();
+        long min_vaddr = Long.MAX_VALUE, max_vaddr = 0, text_start = -1, text_end = 0;
+        long text_delta = 0;
+        for (var segment : segments) {
+            var start = segment[0] & -pageSize;
+            var end = (segment[0] + segment[2] + pageSize - 1) & -pageSize;
+            min_vaddr = Math.min(min_vaddr, start);
+            max_vaddr = Math.max(max_vaddr, end);
+            if (text_start < 0 && (segment[3] & PF_X) != 0) {
+                text_start = start;
+                text_end = end;
+                text_delta = segment[0] - segment[4];
+            }
+        }
+        if (text_start < 0) return null;
+        text_start -= min_vaddr;
+        text_end -= min_vaddr;
+        // The text maps file offset p_offset at bias + p_vaddr, so the bias must make their
+        // difference a multiple of the huge page size, not just the text address
+        text_delta -= min_vaddr;
+
+        var size = max_vaddr - min_vaddr;
+        long raw;
         try {
-            result = callNativeMethod();
-        } finally {
-            if (libraryFdOffset != 0) {
-                theUnsafe.putInt(mmapAddress + libraryFdOffset, 0);
+            // PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE
+            raw = Os.mmap(0, size + HUGE_PAGE_SIZE, 0, 0x4022, FileDescriptor.in, 0);
+        } catch (ErrnoException e) {
+            return null;
+        }
+        var address = ((raw + text_delta + HUGE_PAGE_SIZE - 1) & -HUGE_PAGE_SIZE) - text_delta;
+        try {
+            if (address > raw) Os.munmap(raw, address - raw);
+            var tail = raw + size + HUGE_PAGE_SIZE - (address + size);
+            if (tail > 0) Os.munmap(address + size, tail);
+        } catch (ErrnoException ignored) {
+        }
+        return new long[] {address, size, address + text_start, address + text_end};
+    }
+
+    /** Returns whether a file is mapped anywhere in {@code [address, address + size)}. */
+    private static boolean isFileMapped(long address, long size) {
+        try (var reader = new BufferedReader(new FileReader("/proc/self/maps"))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                var start = Long.parseUnsignedLong(line.substring(0, line.indexOf('-')), 16);
+                if (start >= address && address + size > start && line.indexOf('/') >= 0) {
+                    return true;
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return false;
+    }
+
+    private synchronized NativeLibrary open(
+            String name, String path, int libraryFd, long[] reservation) {
+        var bytes = name.getBytes();
+        if (bytes.length >= theUnsafe.pageSize() - STRING_OFFSET) {
+            unmap(reservation);
+            throw new UnsatisfiedLinkError("Library name too long: " + name);
+        }
+        var filename = dataAddress + STRING_OFFSET;
+        putString(filename, name);
+
+        long handle;
+        if (reservation != null && androidDlopenExt == 0) {
+            unmap(reservation);
+            reservation = null;
+        }
+        if (libraryFd >= 0 || reservation != null) {
+            if (androidDlopenExt == 0) {
+                throw new UnsupportedOperationException("android_dlopen_ext not found");
+            }
+            var flags = 0;
+            if (libraryFd >= 0) flags = ANDROID_DLEXT_USE_LIBRARY_FD | ANDROID_DLEXT_FORCE_LOAD;
+            var extinfo = dataAddress + EXTINFO_OFFSET;
+            if (reservation != null) {
+                // The linker maps over the range with MAP_FIXED, so it stays reserved for the call
+                putExtInfo(extinfo, flags | ANDROID_DLEXT_RESERVED_ADDRESS, reservation, libraryFd);
+                handle = callFunction(androidDlopenExt, filename, RTLD_NOW, extinfo);
+                if (handle == 0) {
+                    unmap(reservation);
+                    reservation = null;
+                } else if (!isFileMapped(reservation[0], reservation[1])) {
+                    // Already loaded elsewhere
+                    unmap(reservation);
+                    reservation = null;
+                } else {
+                    reservations.put(handle, reservation);
+                }
+            } else {
+                putExtInfo(extinfo, flags, null, libraryFd);
+                handle = callFunction(androidDlopenExt, filename, RTLD_NOW, extinfo);
+            }
+        } else {
+            handle = callFunction(dlopen, filename, RTLD_NOW, 0);
+        }
+
+        var bridged = false;
+        if (handle == 0) {
+            var error = getError(dlerror);
+            var bridge = nativeBridgeFunctions;
+            if (bridge != null && libraryFd < 0) {
+                reservation = null;
+                // The library may be built for the architecture the bridge translates
+                putString(filename, name);
+                handle = callFunction(bridge[0], filename, RTLD_NOW);
+                bridged = handle != 0;
+            }
+            if (handle == 0) {
+                throw new UnsatisfiedLinkError(error != null ? error : "dlopen failed: " + name);
+            }
+        }
+
+        if (reservation != null) adviseHugePages(reservation[2], reservation[3]);
+
+        var library = new NativeLibrary(this, handle, path, bridged, reservation);
+        var count = references.merge(handle, 1, Integer::sum);
+        if (count == 1 && libraryFd < 0 && !bridged) {
+            libraryPaths.put(handle, path);
+            var directory = pageProfileDirectory;
+            if (directory != null) PageProfile.replay(this, path, directory);
+        }
+        if (count == 1) {
+            var onLoad = library.findSymbol("JNI_OnLoad");
+            if (onLoad != 0) {
+                var msg = getJniReturnedMessage(name, (int) callFunction(onLoad, getJavaVM(), 0));
+                if (msg != null) {
+                    // No handle is returned, so nothing would ever close this reference
+                    references.remove(handle);
+                    libraryPaths.remove(handle);
+                    throw new UnsatisfiedLinkError(msg);
+                }
             }
+        }
+        return library;
+    }
+
+    /**
+     * Sets the directory {@link PageProfile}s are saved to and read from. While set, the pages
+     * recorded for a library are read ahead right after it is opened from a file, before its
+     * {@code JNI_OnLoad} runs. Null, the default, disables replaying.
+     */
+    public synchronized void setPageProfileDirectory(File directory) {
+        pageProfileDirectory = directory;
+    }
+
+    public synchronized File getPageProfileDirectory() {
+        return pageProfileDirectory;
+    }
+
+    /**
+     * Captures the resident pages of every library currently open through this loader from a
+     * file and saves them to the {@link #setPageProfileDirectory page profile directory}, to be
+     * called after a representative run. Returns the number of profiles saved.
+     */
+    public synchronized int savePageProfiles() {
+        var directory = pageProfileDirectory;
+        if (directory == null) throw new IllegalStateException("No page profile directory set");
+        var saved = 0;
+        for (var path : libraryPaths.values()) {
+            var profile = PageProfile.capture(path);
+            if (profile == null) continue;
             try {
-                Os.close(fd);
-            } catch (ErrnoException ignored) {
+                profile.save(directory);
+                saved++;
+            } catch (IOException ignored) {
+            }
+        }
+        return saved;
+    }
+
+    synchronized long findSymbol(NativeLibrary library, String symbol) {
+        var bytes = symbol.getBytes();
+        if (bytes.length >= theUnsafe.pageSize() - STRING_OFFSET) return 0;
+        var name = dataAddress + STRING_OFFSET;
+        putString(name, symbol);
+        if (library.bridged) {
+            return callFunction(nativeBridgeFunctions[1], library.handle, name, 0, 0);
+        }
+        return callFunction(dlsym, library.handle, name, 0);
+    }
+
+    synchronized void close(NativeLibrary library, boolean callOnUnload) {
+        var handle = library.handle;
+        var count = references.merge(handle, -1, Integer::sum);
+        if (count == 0) {
+            references.remove(handle);
+            libraryPaths.remove(handle);
+            var onUnload = callOnUnload ? findSymbol(library, "JNI_OnUnload") : 0;
+            if (onUnload != 0) callFunction(onUnload, getJavaVM(), 0);
+        }
+
+        if (!library.bridged) {
+            if (dlclose != 0) callFunction(dlclose, handle);
+        } else if (nativeBridgeFunctions[3] != 0) {
+            callFunction(nativeBridgeFunctions[3], handle);
+        }
+
+        if (count == 0) {
+            // The linker leaves a reserved range mapped inaccessible when unloading
+            var reservation = reservations.remove(handle);
+            if (reservation != null && !isFileMapped(reservation[0], reservation[1])) {
+                unmap(reservation);
             }
+            Symbolizer.onLibraryClosed();
+        }
+    }
+
+    private void adviseHugePages(long start, long end) {
+        var madvise = getLibcSymbol("madvise");
+        if (madvise == 0) return;
+        if ((int) callFunction(madvise, start, end - start, MADV_HUGEPAGE) != 0) return;
+        // Collapse right away where supported (Linux 6.1+) instead of waiting for khugepaged
+        var huge_start = (start + HUGE_PAGE_SIZE - 1) & -HUGE_PAGE_SIZE;
+        var huge_end = end & -HUGE_PAGE_SIZE;
+        if (huge_end > huge_start) {
+            callFunction(madvise, huge_start, huge_end - huge_start, MADV_COLLAPSE);
+        }
+    }
+
+    private static void unmap(long[] reservation) {
+        if (reservation == null) return;
+        try {
+            Os.munmap(reservation[0], reservation[1]);
+        } catch (ErrnoException ignored) {
+        }
+    }
+
+    private void putExtInfo(long extinfo, long flags, long[] reservation, int libraryFd) {
+        // android_dlextinfo
+        var u = theUnsafe;
+        var is64Bit = u.addressSize() == 8;
+        copyMemory(new byte[is64Bit ? 48 : 40], extinfo, is64Bit ? 48 : 40);
+        u.putLong(extinfo, flags);
+        if (reservation != null) {
+            putPointer(extinfo + 8, reservation[0]);
+            putPointer(extinfo + (is64Bit ? 16 : 12), reservation[1]);
+        }
+        if (libraryFd >= 0) u.putInt(extinfo + (is64Bit ? 28 : 20), libraryFd);
+    }
+
+    private String getError(long dlerror) {
+        if (dlerror == 0) return null;
+        var message = callFunction(dlerror);
+        return message == 0 ? null : NativeMemory.readCString(message);
+    }
+
+    private long getJavaVM() {
+        if (javaVM != 0) return javaVM;
+        var addressSize = theUnsafe.addressSize();
+        // Every call leaves the JNIEnv* of the calling thread in the argument block
+        var out = dataAddress + SCRATCH_OFFSET;
+        putPointer(out, 0);
+        var env = NativeMemory.readPointer(dataAddress + CALL_ARGS_OFFSET + 7L * addressSize);
+        if (env == 0) {
+            callFunction(getLibcSymbol("getpid"));
+            env = NativeMemory.readPointer(dataAddress + CALL_ARGS_OFFSET + 7L * addressSize);
+        }
+        var functions = NativeMemory.readPointer(env);
+        var getJavaVM = NativeMemory.readPointer(functions + JNI_GET_JAVA_VM_INDEX * addressSize);
+        if ((int) callFunction(getJavaVM, env, out) == JNI_OK) {
+            javaVM = NativeMemory.readPointer(out);
+        }
+        return javaVM;
+    }
+
+    /**
+     * Calls the native function at {@code function} with up to six integer or pointer
+     * arguments and returns its result, zero-extended on 32-bit.
+     */
+    synchronized long callFunction(long function, long... args) {
+        if (args.length > CALL_MAX_ARGS) {
+            throw new IllegalArgumentException("Too many arguments: " + args.length);
+        }
+        if (!ensureInitialized()) {
+            throw new IllegalStateException("Trampoline not initialized");
+        }
+        var addressSize = theUnsafe.addressSize();
+        var slots = dataAddress + CALL_ARGS_OFFSET;
+        putPointer(slots, function);
+        for (var i = 0; CALL_MAX_ARGS > i; i++) {
+            putPointer(slots + (i + 1L) * addressSize, args.length > i ? args[i] : 0);
         }
+        var result = callNativeMethod(slots);
+        return addressSize == 8 ? result : result & 0xffffffffL;
+    }
+
+    /** Returns the address of {@code symbol} in libc.so, or 0 if it is not exported. */
+    synchronized long getLibcSymbol(String symbol) {
+        var elf = libc;
+        if (elf == null) elf = libc = new ElfImg("/libc.so");
+        return elf.getSymbolAddress(symbol);
+    }
 
-        var msg =
-                result >>> 56 != 0x10
-                        ? getJniReturnedMessage(libraryId, (int) result)
-                        : toJavaString(result & ((1L << 56) - 1));
-        if (msg != null) {
-            throw new UnsatisfiedLinkError(msg);
+    /**
+     * Copies the machine code in {@code code} into executable memory and returns its address,
+     * or 0 if the loader could not be initialized or no memory could be mapped. Stubs are packed
+     * into shared pages that are never writable and executable at once. A stub stays valid until
+     * it is passed to {@link #freeStub(long)} or the loader is {@link #release() released}.
+     */
+    public synchronized long allocateStub(byte[] code) {
+        if (!ensureInitialized()) return 0;
+        try {
+            return codeCache.allocate(code, code.length);
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+
+    /** Releases a stub returned by {@link #allocateStub(byte[])}. */
+    public synchronized void freeStub(long address) {
+        if (codeCache == null) throw new IllegalStateException("Loader released");
+        codeCache.free(address);
+    }
+
+    /** Makes instructions written to {@code [start, end)} visible to instruction fetch. */
+    void flushInstructionCache(long start, long end) {
+        if (!ensureInitialized()) return;
+        switch (arch) {
+            case "arm64" -> callFunction(cacheFlush, start & ~15L, end);
+            case "arm" -> callFunction(getLibcSymbol("cacheflush"), start, end, 0);
+            case "riscv64" -> {
+                var flush = getLibcSymbol("__riscv_flush_icache");
+                if (flush != 0) {
+                    callFunction(flush, start, end, 0);
+                } else {
+                    // __NR_riscv_flush_icache
+                    callFunction(getLibcSymbol("syscall"), 259, start, end, 0);
+                }
+            }
         }
-        return true;
     }
 
-    public void release() {
-        if (mmapAddress == 0) return;
+    /**
+     * Unmaps the pages of the loader. Libraries stay loaded; closing them afterwards
+     * initializes a new loader state.
+     */
+    public synchronized void release() {
+        if (codeAddress == 0) return;
+        codeCache.release();
+        codeCache = null;
+        cacheFlush = 0;
         try {
-            Os.munmap(mmapAddress, theUnsafe.pageSize());
+            Os.munmap(dataAddress, theUnsafe.pageSize());
         } catch (ErrnoException ignored) {
         }
-        mmapAddress = 0;
+        codeAddress = 0;
+        dataAddress = 0;
         instance = null;
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * A library opened with {@link ElfLoader#open(String)}. Opening the same library again returns
+ * another handle to it; it is unloaded once every handle has been closed.
+ */
+public final class NativeLibrary implements Closeable {
+    final ElfLoader loader;
+    final long handle;
+    final String path;
+    final boolean bridged;
+    private final long textStart;
+    private final long textEnd;
+    private boolean closed;
+
+    NativeLibrary(
+            ElfLoader loader, long handle, String path, boolean bridged, long[] reservation) {
+        this.loader = loader;
+        this.handle = handle;
+        this.path = path;
+        this.bridged = bridged;
+        textStart = reservation == null ? 0 : reservation[2];
+        textEnd = reservation == null ? 0 : reservation[3];
+    }
+
+    /** Returns the handle returned by {@code dlopen}. */
+    public long getHandle() {
+        return handle;
+    }
+
+    /** Returns the canonical path of the library, or its id if it was loaded from memory. */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns how many bytes of the text segment are currently mapped with huge pages, read from
+     * {@code AnonHugePages} and {@code FilePmdMapped} in {@code /proc/self/smaps}. Always 0 if
+     * the library was not opened with huge page alignment or could not be placed as requested.
+     *
+     * <p>Whether the kernel backs file text with huge pages depends on its configuration; it
+     * may also only happen later, once {@code khugepaged} gets to the range.
+     */
+    public long getHugePageSize() {
+        if (textEnd == 0) return 0;
+        var size = 0L;
+        try (var reader = new BufferedReader(new FileReader("/proc/self/smaps"))) {
+            var inText = false;
+            for (String line; (line = reader.readLine()) != null; ) {
+                var dash = line.indexOf('-');
+                var space = line.indexOf(' ');
+                if (dash > 0 && space > dash && line.indexOf(':') > space) {
+                    // 7f0000000000-7f0000200000 r-xp 00000000 fd:01 123 /path
+                    var start = Long.parseUnsignedLong(line.substring(0, dash), 16);
+                    inText = start >= textStart && textEnd > start;
+                    continue;
+                }
+                if (!inText) continue;
+                if (line.startsWith("AnonHugePages:") || line.startsWith("FilePmdMapped:")) {
+                    var value = line.substring(line.indexOf(':') + 1).trim();
+                    size += Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return size;
+    }
+
+    /** Returns the address of {@code symbol} as resolved by {@code dlsym}, or 0 if not found. */
+    public long findSymbol(String symbol) {
+        if (closed) throw new IllegalStateException("Library closed: " + path);
+        return loader.findSymbol(this, symbol);
+    }
+
+    /** Closes this handle, calling {@code JNI_OnUnload} if it was the last one. */
+    @Override
+    public void close() {
+        close(true);
+    }
+
+    /**
+     * Closes this handle. If it was the last one, {@code JNI_OnUnload} is called first when
+     * {@code callOnUnload} is set, and cached symbol indexes of the library are dropped. Closing
+     * a handle twice has no effect.
+     */
+    public synchronized void close(boolean callOnUnload) {
+        if (closed) return;
+        closed = true;
+        loader.close(this, callOnUnload);
+    }
+
+    @Override
+    public String toString() {
+        return "NativeLibrary{" + path + ", handle=0x" + Long.toHexString(handle) + '}';
+    }
+}
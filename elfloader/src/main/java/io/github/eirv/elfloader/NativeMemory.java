@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Reads native memory of this process, e.g. globals of a loaded library at addresses found with
+ * {@link ElfImg}. Nothing is validated: reading an unmapped address crashes the process.
+ */
+public final class NativeMemory {
+    private static final int MIN_STRING_CHUNK = 64;
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private NativeMemory() {}
+
+    /** Reads the NUL-terminated string at {@code address}, or returns null if it is 0. */
+    public static String readCString(long address) {
+        return readCString(address, MAX_ARRAY_LENGTH);
+    }
+
+    /**
+     * Reads the NUL-terminated string at {@code address}, or its first {@code maxLength} bytes
+     * if it is longer. Returns null if {@code address} is 0.
+     *
+     * <p>The string is copied in chunks that grow with it and never cross a page boundary, so
+     * no byte past the terminator's page is touched.
+     */
+    public static String readCString(long address, int maxLength) {
+        if (address == 0) return null;
+        var pageSize = ElfLoader.theUnsafe.pageSize();
+        var buffer = new byte[Math.min(maxLength, MIN_STRING_CHUNK)];
+        var length = 0;
+        while (maxLength > length) {
+            var current = address + length;
+            var chunk = Math.min(Math.max(length, MIN_STRING_CHUNK), maxLength - length);
+            chunk = (int) Math.min(chunk, pageSize - (current & (pageSize - 1)));
+            if (length + chunk > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(maxLength, (length + chunk) * 2L));
+            }
+            ElfLoader.copyMemory(current, buffer, length, chunk);
+            for (var i = length; length + chunk > i; i++) {
+                if (buffer[i] == 0) return new String(buffer, 0, i);
+            }
+            length += chunk;
+        }
+        return new String(buffer, 0, length);
+    }
+
+    public static byte readByte(long address) {
+        return ElfLoader.theUnsafe.getByte(address);
+    }
+
+    public static short readShort(long address) {
+        return ElfLoader.theUnsafe.getShort(address);
+    }
+
+    public static int readInt(long address) {
+        return ElfLoader.theUnsafe.getInt(address);
+    }
+
+    public static long readLong(long address) {
+        return ElfLoader.theUnsafe.getLong(address);
+    }
+
+    public static float readFloat(long address) {
+        return Float.intBitsToFloat(ElfLoader.theUnsafe.getInt(address));
+    }
+
+    public static double readDouble(long address) {
+        return Double.longBitsToDouble(ElfLoader.theUnsafe.getLong(address));
+    }
+
+    /** Reads a pointer, zero-extended on 32-bit. */
+    public static long readPointer(long address) {
+        var u = ElfLoader.theUnsafe;
+        return u.addressSize() == 8 ? u.getLong(address) : u.getInt(address) & 0xffffffffL;
+    }
+
+    /** Copies {@code len} bytes at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, byte[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off, len);
+    }
+
+    /** Copies {@code len} shorts at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, short[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 2, len * 2);
+    }
+
+    /** Copies {@code len} chars at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, char[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 2, len * 2);
+    }
+
+    /** Copies {@code len} ints at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, int[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 4, len * 4);
+    }
+
+    /** Copies {@code len} longs at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, long[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 8, len * 8);
+    }
+
+    /** Copies {@code len} floats at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, float[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 4, len * 4);
+    }
+
+    /** Copies {@code len} doubles at {@code address} into {@code dst[off..off + len)}. */
+    public static void read(long address, double[] dst, int off, int len) {
+        checkRange(dst.length, off, len);
+        ElfLoader.copyMemory(address, dst, off * 8, len * 8);
+    }
+
+    /** Reads {@code len} pointers at {@code address}, zero-extended on 32-bit. */
+    public static void readPointers(long address, long[] dst, int off, int len) {
+        if (ElfLoader.theUnsafe.addressSize() == 8) {
+            read(address, dst, off, len);
+            return;
+        }
+        checkRange(dst.length, off, len);
+        var pointers = new int[len];
+        ElfLoader.copyMemory(address, pointers, len * 4);
+        for (var i = 0; len > i; i++) {
+            dst[off + i] = pointers[i] & 0xffffffffL;
+        }
+    }
+
+    private static void checkRange(int length, int off, int len) {
+        if ((off | len) < 0 || off > length - len) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "length=" + length + "; regionStart=" + off + "; regionLength=" + len);
+        }
+    }
+
+    /**
+     * The layout of a C struct: its size and the fields to read from it. A layout is defined
+     * once and then reads any number of structs, or an array of them, with a single copy.
+     *
+     * <pre>{@code
+     * var layout = new NativeMemory.StructLayout(24); // Elf64_Sym
+     * var st_name = layout.addUnsignedField(0, 4);
+     * var st_value = layout.addField(8, 8);
+     * var symbols = layout.read(address, count);
+     * for (var i = 0; count > i; i++) {
+     *     process(symbols.get(i, st_name), symbols.get(i, st_value));
+     * }
+     * }</pre>
+     */
+    public static final class StructLayout {
+        private final int size;
+
+        public StructLayout(int size) {
+            if (size <= 0) throw new IllegalArgumentException("Bad struct size: " + size);
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Adds a signed integer field of {@code width} 1, 2, 4 or 8 bytes at {@code offset}. */
+        public Field addField(int offset, int width) {
+            return add(offset, width, true);
+        }
+
+        /** Adds an unsigned integer field of {@code width} 1, 2 or 4 bytes at {@code offset}. */
+        public Field addUnsignedField(int offset, int width) {
+            if (width == 8) throw new IllegalArgumentException("Use addField for 8-byte fields");
+            return add(offset, width, false);
+        }
+
+        /** Adds a pointer field at {@code offset}, zero-extended on 32-bit. */
+        public Field addPointer(int offset) {
+            var width = ElfLoader.theUnsafe.addressSize();
+            return add(offset, width, width == 8);
+        }
+
+        private Field add(int offset, int width, boolean signed) {
+            if (width != 1 && width != 2 && width != 4 && width != 8) {
+                throw new IllegalArgumentException("Bad field width: " + width);
+            }
+            if (offset < 0 || offset > size - width) {
+                throw new IllegalArgumentException("Field out of struct bounds: " + offset);
+            }
+            return new Field(this, offset, width, signed);
+        }
+
+        /** Reads the struct at {@code address}. */
+        public StructView read(long address) {
+            return read(address, 1);
+        }
+
+        /** Reads the array of {@code count} structs at {@code address}. */
+        public StructView read(long address, int count) {
+            if (count < 0 || count > MAX_ARRAY_LENGTH / size) {
+                throw new IllegalArgumentException("Bad struct count: " + count);
+            }
+            var data = new byte[size * count];
+            ElfLoader.copyMemory(address, data, data.length);
+            return new StructView(this, data, count);
+        }
+    }
+
+    /** A field of a {@link StructLayout}. */
+    public static final class Field {
+        final StructLayout layout;
+        final int offset;
+        final int width;
+        final boolean signed;
+
+        Field(StructLayout layout, int offset, int width, boolean signed) {
+            this.layout = layout;
+            this.offset = offset;
+            this.width = width;
+            this.signed = signed;
+        }
+
+        public int offset() {
+            return offset;
+        }
+
+        public int width() {
+            return width;
+        }
+    }
+
+    /** A copy of one or more structs read with a {@link StructLayout}. */
+    public static final class StructView {
+        private final StructLayout layout;
+        private final ByteBuffer data;
+        private final int count;
+
+        StructView(StructLayout layout, byte[] data, int count) {
+            this.layout = layout;
+            this.data = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+            this.count = count;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /** Returns {@code field} of the struct at {@code index}, extended to a long. */
+        public long get(int index, Field field) {
+            var position = position(index, field);
+            var signed = field.signed;
+            return switch (field.width) {
+                case 1 -> signed ? data.get(position) : data.get(position) & 0xff;
+                case 2 -> signed ? data.getShort(position) : data.getShort(position) & 0xffff;
+                case 4 -> signed ? data.getInt(position) : data.getInt(position) & 0xffffffffL;
+                default -> data.getLong(position);
+            };
+        }
+
+        public float getFloat(int index, Field field) {
+            return Float.intBitsToFloat((int) get(index, field));
+        }
+
+        public double getDouble(int index, Field field) {
+            return Double.longBitsToDouble(get(index, field));
+        }
+
+        private int position(int index, Field field) {
+            if (field.layout != layout) {
+                throw new IllegalArgumentException("Field of another layout");
+            }
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("index=" + index + ", count=" + count);
+            }
+            return index * layout.size + field.offset;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The pages of a library's {@code PT_LOAD} segments that were resident at some point, keyed by
+ * the library's build id. A profile captured after a representative run lets later starts read
+ * just those pages ahead with {@code madvise(MADV_WILLNEED)} right after {@code dlopen},
+ * instead of taking a major fault for each of them.
+ *
+ * @see ElfLoader#setPageProfileDirectory(File)
+ */
+public final class PageProfile {
+    private static final int MAGIC = 0x50504c45; // ELPP
+    private static final int VERSION = 1;
+    private static final int MADV_WILLNEED = 3;
+    private static final String SUFFIX = ".pages";
+
+    private final String buildId;
+    private final int pageSize;
+    private final long[] offsets;
+    private final int[] pageCounts;
+    private final byte[][] bitmaps;
+
+    private PageProfile(
+            String buildId, int pageSize, long[] offsets, int[] pageCounts, byte[][] bitmaps) {
+        this.buildId = buildId;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.pageCounts = pageCounts;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * Samples which pages of the file-backed part of each {@code PT_LOAD} segment of the
+     * library mapped from {@code path} are resident. Returns null if the library is not mapped
+     * into this process or has no build id.
+     */
+    public static PageProfile capture(String path) {
+        try (var image = new ElfImg(path, false, SymbolFilter.NONE)) {
+            return capture(image);
+        }
+    }
+
+    private static PageProfile capture(ElfImg image) {
+        var buildId = image.getBuildId();
+        var segments = image.getLoadSegments();
+        if (buildId == null || segments.length == 0) return null;
+
+        var pageSize = ElfLoader.theUnsafe.pageSize();
+        var offsets = new long[segments.length];
+        var pageCounts = new int[segments.length];
+        var bitmaps = new byte[segments.length][];
+        for (var i = 0; segments.length > i; i++) {
+            var start = segments[i][0] & -pageSize;
+            var end = (segments[i][0] + segments[i][1] + pageSize - 1) & -pageSize;
+            var pages = (int) ((end - start) / pageSize);
+            var bitmap = new byte[(pages + 7) / 8];
+            offsets[i] = start - image.getBias();
+            pageCounts[i] = pages;
+            bitmaps[i] = bitmap;
+            if (pages == 0) continue;
+
+            var vector = new byte[pages];
+            try {
+                Os.mincore(start, end - start, vector);
+            } catch (ErrnoException ignored) {
+                continue;
+            }
+            for (var page = 0; pages > page; page++) {
+                if ((vector[page] & 1) != 0) bitmap[page >>> 3] |= (byte) (1 << (page & 7));
+            }
+        }
+        return new PageProfile(buildId, pageSize, offsets, pageCounts, bitmaps);
+    }
+
+    /**
+     * Reads the profile saved for {@code buildId} in {@code directory}. Returns null if there is
+     * none or it cannot be read.
+     */
+    public static PageProfile read(File directory, String buildId) {
+        var file = new File(directory, buildId + SUFFIX);
+        if (!file.isFile()) return null;
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            var pageSize = in.readInt();
+            var count = in.readInt();
+            if (pageSize <= 0 || count < 0 || count > 0xffff) return null;
+            var offsets = new long[count];
+            var pageCounts = new int[count];
+            var bitmaps = new byte[count][];
+            for (var i = 0; count > i; i++) {
+                offsets[i] = in.readLong();
+                var pages = pageCounts[i] = in.readInt();
+                if (pages < 0) return null;
+                in.readFully(bitmaps[i] = new byte[(pages + 7) / 8]);
+            }
+            return new PageProfile(buildId, pageSize, offsets, pageCounts, bitmaps);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Saves the profile as {@code <build id>.pages} in {@code directory}. */
+    public void save(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // Replace the file in one step, a concurrent start must not read half of it
+        var file = new File(directory, buildId + SUFFIX);
+        var temp = new File(directory, buildId + SUFFIX + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pageSize);
+            out.writeInt(offsets.length);
+            for (var i = 0; offsets.length > i; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(pageCounts[i]);
+                out.write(bitmaps[i]);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    public String getBuildId() {
+        return buildId;
+    }
+
+    /** Returns the number of pages covered by the profile. */
+    public int getPageCount() {
+        var count = 0;
+        for (var pages : pageCounts) count += pages;
+        return count;
+    }
+
+    /** Returns the number of pages that were resident when the profile was captured. */
+    public int getResidentPageCount() {
+        var count = 0;
+        for (var bitmap : bitmaps) {
+            for (var b : bitmap) count += Integer.bitCount(b & 0xff);
+        }
+        return count;
+    }
+
+    /**
+     * Replays the profile saved in {@code directory} for the library just mapped from {@code
+     * path}. Returns the number of pages read ahead.
+     */
+    static int replay(ElfLoader loader, String path, File directory) {
+        try (var image = new ElfImg(path, false, SymbolFilter.NONE)) {
+            var buildId = image.getBuildId();
+            if (buildId == null) return 0;
+            var profile = read(directory, buildId);
+            return profile == null ? 0 : profile.replay(loader, image);
+        }
+    }
+
+    private int replay(ElfLoader loader, ElfImg image) {
+        var segments = image.getLoadSegments();
+        if (pageSize != ElfLoader.theUnsafe.pageSize() || segments.length != offsets.length) {
+            return 0;
+        }
+        var madvise = loader.getLibcSymbol("madvise");
+        if (madvise == 0) return 0;
+
+        var advised = 0;
+        for (var i = 0; segments.length > i; i++) {
+            var start = segments[i][0] & -pageSize;
+            var end = (segments[i][0] + segments[i][1] + pageSize - 1) & -pageSize;
+            var pages = pageCounts[i];
+            // A rebuilt library with the same build id is unlikely but not impossible
+            if (start - image.getBias() != offsets[i] || (end - start) / pageSize != pages) {
+                return advised;
+            }
+            var bitmap = bitmaps[i];
+            for (var page = 0; pages > page; ) {
+                if ((bitmap[page >>> 3] & 1 << (page & 7)) == 0) {
+                    page++;
+                    continue;
+                }
+                var run = page;
+                while (pages > run && (bitmap[run >>> 3] & 1 << (run & 7)) != 0) run++;
+                loader.callFunction(
+                        madvise,
+                        start + (long) page * pageSize,
+                        (long) (run - page) * pageSize,
+                        MADV_WILLNEED);
+                advised += run - page;
+                page = run;
+            }
+        }
+        return advised;
+    }
+}
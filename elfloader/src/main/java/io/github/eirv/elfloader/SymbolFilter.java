@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Selects the symbols an {@link ElfImg} retains while parsing. Rejected symbols never have a
+ * {@link String} created for them.
+ */
+@FunctionalInterface
+public interface SymbolFilter {
+    /**
+     * Retains no symbols. An image parsed with it locates its symbol tables without reading
+     * them, so {@link ElfImg#visitSymbols} makes the only pass over them.
+     */
+    SymbolFilter NONE = (name, off, len, type, binding) -> false;
+
+    /**
+     * Returns whether the symbol named {@code name[off..off + len)} is retained.
+     *
+     * @see SymbolVisitor#visitSymbol
+     */
+    boolean accept(byte[] name, int off, int len, int type, int binding);
+
+    /** Returns a filter retaining the symbols whose names start with one of {@code prefixes}. */
+    static SymbolFilter prefix(String... prefixes) {
+        var bytes = new byte[prefixes.length][];
+        for (var i = 0; prefixes.length > i; i++) {
+            bytes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return (name, off, len, type, binding) -> {
+            next:
+            for (var prefix : bytes) {
+                if (prefix.length > len) continue;
+                for (var i = 0; prefix.length > i; i++) {
+                    if (name[off + i] != prefix[i]) continue next;
+                }
+                return true;
+            }
+            return false;
+        };
+    }
+}
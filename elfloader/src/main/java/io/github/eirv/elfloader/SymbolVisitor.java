@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+/** Receives the symbols of an {@link ElfImg}, see {@link ElfImg#visitSymbols(SymbolVisitor)}. */
+@FunctionalInterface
+public interface SymbolVisitor {
+    int STB_LOCAL = 0;
+    int STB_GLOBAL = 1;
+    int STB_WEAK = 2;
+
+    int STT_NOTYPE = 0;
+    int STT_OBJECT = 1;
+    int STT_FUNC = 2;
+    int STT_TLS = 6;
+    int STT_GNU_IFUNC = 10;
+
+    /**
+     * Called for each defined, named symbol. The name is {@code name[off..off + len)} without
+     * the terminating NUL; the array is reused for the next symbol and must not be retained.
+     *
+     * @param value the address of the symbol, relocated like {@link ElfImg#getSymbolAddress}
+     * @param type the {@code STT_*} type of the symbol
+     * @param binding the {@code STB_*} binding of the symbol
+     * @return false to stop visiting
+     */
+    boolean visitSymbol(
+            byte[] name, int off, int len, long value, long size, int type, int binding);
+}
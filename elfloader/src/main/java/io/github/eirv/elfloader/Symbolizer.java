@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves native addresses of this process to {@code module + symbol + offset} in batches.
+ *
+ * <p>The modules are located with a snapshot of {@code /proc/self/maps}, taken on first use and
+ * again, at most once a second, when an address falls outside of every mapping in it. The
+ * symbol index of a module is built from its {@code .dynsym} and {@code .symtab} the first time
+ * one of its addresses is looked up, and the least recently used indexes are dropped once more
+ * than the configured number of modules are cached. A file deleted since it was mapped, such as
+ * a library loaded from memory, is read through {@code /proc/self/map_files}.
+ */
+public final class Symbolizer {
+    private static final int DEFAULT_CACHE_SIZE = 32;
+    private static final long SNAPSHOT_INTERVAL_NANOS = 1_000_000_000L;
+    private static final String DELETED = " (deleted)";
+
+    private static final ArrayList<WeakReference<Symbolizer>> symbolizers = new ArrayList<>();
+    private static Symbolizer instance;
+
+    private final int cacheSize;
+    private final LinkedHashMap<String, Module> modules;
+
+    private long[] mapStarts;
+    private long[] mapEnds;
+    private long[] mapBases;
+    private long[] mapFileOffsets;
+    private String[] mapPaths;
+    private String[] mapSources;
+    private long snapshotTime;
+
+    private long batchCount;
+    private long addressCount;
+    private long resolvedCount;
+    private long elapsedNanos;
+    private long indexBuilds;
+    private long indexEvictions;
+    private long mapsSnapshots;
+
+    public Symbolizer(int cacheSize) {
+        if (cacheSize <= 0) throw new IllegalArgumentException("Bad cache size: " + cacheSize);
+        this.cacheSize = cacheSize;
+        modules =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Module> eldest) {
+                        if (size() <= Symbolizer.this.cacheSize) return false;
+                        indexEvictions++;
+                        return true;
+                    }
+                };
+        synchronized (symbolizers) {
+            symbolizers.removeIf(reference -> reference.get() == null);
+            symbolizers.add(new WeakReference<>(this));
+        }
+    }
+
+    public static Symbolizer getInstance() {
+        var symbolizer = instance;
+        if (symbolizer != null) return symbolizer;
+        synchronized (Symbolizer.class) {
+            if (instance == null) instance = new Symbolizer(DEFAULT_CACHE_SIZE);
+            return instance;
+        }
+    }
+
+    /**
+     * Symbolizes {@code addresses[0..count)}. For each address, {@code modules[i]} receives the
+     * path of the containing file, {@code symbols[i]} the raw name of the containing symbol and
+     * {@code offsets[i]} the offset into it. An address inside a module but not inside any
+     * symbol gets a null symbol and its offset from the module's load base; any other address,
+     * e.g. in JIT code, gets a null module and symbol and an offset of 0.
+     *
+     * @return the number of addresses resolved to a symbol
+     */
+    public synchronized int symbolize(
+            long[] addresses, int count, String[] modules, String[] symbols, long[] offsets) {
+        var start = System.nanoTime();
+        if (mapStarts == null) snapshotMaps();
+
+        // Resolve each distinct address once, in ascending order
+        var sorted = Arrays.copyOf(addresses, count);
+        Arrays.sort(sorted);
+        var unique = 0;
+        for (var i = 0; count > i; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) sorted[unique++] = sorted[i];
+        }
+
+        var uniqueModules = new String[unique];
+        var uniqueSymbols = new String[unique];
+        var uniqueOffsets = new long[unique];
+        var refreshed = false;
+        Module module = null;
+        var map = -1;
+        for (var i = 0; unique > i; i++) {
+            var address = sorted[i];
+            if (map < 0 || address >= mapEnds[map]) {
+                map = findMapping(address);
+                // Stray addresses must not make every batch re-read the maps
+                if (map < 0 && !refreshed && start - snapshotTime >= SNAPSHOT_INTERVAL_NANOS) {
+                    snapshotMaps();
+                    refreshed = true;
+                    map = findMapping(address);
+                }
+                if (map < 0 || mapPaths[map] == null) {
+                    module = null;
+                } else if (module == null
+                        || module.base != mapBases[map]
+                        || !module.path.equals(mapPaths[map])) {
+                    module = getModule(map);
+                }
+            }
+            if (module == null) continue;
+            uniqueModules[i] = module.path;
+            var symbol = module.find(address);
+            if (symbol < 0) {
+                uniqueOffsets[i] = address - module.base;
+            } else {
+                uniqueSymbols[i] = module.getName(symbol);
+                uniqueOffsets[i] = address - module.starts[symbol];
+            }
+        }
+
+        var resolved = 0;
+        for (var i = 0; count > i; i++) {
+            var index = Arrays.binarySearch(sorted, 0, unique, addresses[i]);
+            modules[i] = uniqueModules[index];
+            symbols[i] = uniqueSymbols[index];
+            offsets[i] = uniqueOffsets[index];
+            if (symbols[i] != null) resolved++;
+        }
+
+        batchCount++;
+        addressCount += count;
+        resolvedCount += resolved;
+        elapsedNanos += System.nanoTime() - start;
+        return resolved;
+    }
+
+    /**
+     * Drops the cached index of {@code path}, e.g. after the library was unloaded, and the maps
+     * snapshot it was located with.
+     */
+    public synchronized void evict(String path) {
+        modules.values().removeIf(module -> module.path.equals(path));
+        mapStarts = null;
+    }
+
+    /**
+     * Drops the indexes of modules no longer mapped where they were indexed, e.g. after their
+     * library was unloaded, so one mapped again at the same path and address is indexed anew.
+     */
+    public synchronized void evictUnmapped() {
+        if (modules.isEmpty()) return;
+        snapshotMaps();
+        modules.values()
+                .removeIf(
+                        module -> {
+                            var map = findMapping(module.base);
+                            return map < 0
+                                    || mapBases[map] != module.base
+                                    || !module.path.equals(mapPaths[map]);
+                        });
+    }
+
+    static void onLibraryClosed() {
+        var live = new ArrayList<Symbolizer>();
+        synchronized (symbolizers) {
+            for (var reference : symbolizers) {
+                var symbolizer = reference.get();
+                if (symbolizer != null) live.add(symbolizer);
+            }
+        }
+        for (var symbolizer : live) symbolizer.evictUnmapped();
+    }
+
+    /** Drops all cached indexes and the maps snapshot. */
+    public synchronized void clear() {
+        modules.clear();
+        mapStarts = null;
+    }
+
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    public synchronized long getAddressCount() {
+        return addressCount;
+    }
+
+    public synchronized long getResolvedCount() {
+        return resolvedCount;
+    }
+
+    /** Returns the time spent in {@link #symbolize}, including building indexes. */
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /** Returns the number of addresses symbolized per second of {@link #getElapsedNanos()}. */
+    public synchronized double getThroughput() {
+        return elapsedNanos == 0 ? 0 : addressCount * 1e9 / elapsedNanos;
+    }
+
+    public synchronized long getIndexBuilds() {
+        return indexBuilds;
+    }
+
+    public synchronized long getIndexEvictions() {
+        return indexEvictions;
+    }
+
+    public synchronized long getMapsSnapshots() {
+        return mapsSnapshots;
+    }
+
+    public synchronized void resetMetrics() {
+        batchCount = addressCount = resolvedCount = elapsedNanos = 0;
+        indexBuilds = indexEvictions = mapsSnapshots = 0;
+    }
+
+    private int findMapping(long address) {
+        int low = 0, high = mapStarts.length - 1;
+        while (high >= low) {
+            var mid = (low + high) >>> 1;
+            if (mapStarts[mid] > address) {
+                high = mid - 1;
+            } else if (address >= mapEnds[mid]) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void snapshotMaps() {
+        var starts = new ArrayList<Long>();
+        var ends = new ArrayList<Long>();
+        var bases = new ArrayList<Long>();
+        var fileOffsets = new ArrayList<Long>();
+        var paths = new ArrayList<String>();
+        var sources = new ArrayList<String>();
+        var lastFile = -1;
+        try (var reader = new BufferedReader(new FileReader("/proc/self/maps"))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.isEmpty()) continue;
+                // start-end perms offset dev inode path
+                var path = line.indexOf('/');
+                var dash = line.indexOf('-');
+                var space = line.indexOf(' ');
+                var offsetStart = line.indexOf(' ', space + 1) + 1;
+                var offsetEnd = line.indexOf(' ', offsetStart);
+                var start = Long.parseUnsignedLong(line.substring(0, dash), 16);
+                var end = Long.parseUnsignedLong(line.substring(dash + 1, space), 16);
+                var offset = Long.parseUnsignedLong(line.substring(offsetStart, offsetEnd), 16);
+                starts.add(start);
+                ends.add(end);
+                if (path < 0) {
+                    // Anonymous memory
+                    bases.add(0L);
+                    fileOffsets.add(0L);
+                    paths.add(null);
+                    sources.add(null);
+                    continue;
+                }
+                var file = line.substring(path);
+                var source = file;
+                if (file.endsWith(DELETED)) {
+                    // Unlinked or replaced since, e.g. a library loaded from a memfd; the mapped
+                    // file itself is still reachable through map_files
+                    file = file.substring(0, file.length() - DELETED.length());
+                    source = "/proc/self/map_files/" + line.substring(0, space);
+                }
+
+                // The segments of one ELF image follow each other with increasing offsets
+                var last = lastFile;
+                var sameImage =
+                        last >= 0
+                                && paths.get(last).equals(file)
+                                && offset > fileOffsets.get(last);
+                bases.add(sameImage ? bases.get(last) : start);
+                fileOffsets.add(sameImage ? fileOffsets.get(last) : offset);
+                paths.add(file);
+                sources.add(sameImage ? sources.get(last) : source);
+                lastFile = paths.size() - 1;
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+
+        var size = starts.size();
+        mapStarts = new long[size];
+        mapEnds = new long[size];
+        mapBases = new long[size];
+        mapFileOffsets = new long[size];
+        mapPaths = paths.toArray(new String[0]);
+        mapSources = sources.toArray(new String[0]);
+        for (var i = 0; size > i; i++) {
+            mapStarts[i] = starts.get(i);
+            mapEnds[i] = ends.get(i);
+            mapBases[i] = bases.get(i);
+            mapFileOffsets[i] = fileOffsets.get(i);
+        }
+        snapshotTime = System.nanoTime();
+        mapsSnapshots++;
+    }
+
+    private Module getModule(int map) {
+        var path = mapPaths[map];
+        var base = mapBases[map];
+        var key = path + '@' + Long.toHexString(base);
+        var module = modules.get(key);
+        if (module == null) {
+            module = new Module(path, base);
+            module.build(mapSources[map], mapFileOffsets[map]);
+            indexBuilds++;
+            modules.put(key, module);
+        }
+        return module;
+    }
+
+    private static final class Module implements SymbolVisitor {
+        final String path;
+        final long base;
+        long[] starts = new long[0];
+        long[] sizes = new long[0];
+        int[] nameOffsets = new int[0];
+        byte[] names = new byte[0];
+        private int[] bindings = new int[0];
+        private int count;
+        private int namesSize;
+
+        Module(String path, long base) {
+            this.path = path;
+            this.base = base;
+        }
+
+        void build(String source, long fileOffset) {
+            var file = new File(source);
+            var length = file.length() - fileOffset;
+            if (length <= 0) return;
+
+            ByteBuffer elf = null;
+            try (var in = new FileInputStream(file)) {
+                elf = in.getChannel().map(MapMode.READ_ONLY, fileOffset, length);
+                try (var image = new ElfImg(elf, base, true, SymbolFilter.NONE)) {
+                    image.visitSymbols(this);
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // Not an ELF image, e.g. a mapped apk or dex file
+            } finally {
+                if (elf != null) ElfImg.unmap(elf);
+            }
+
+            // Prefer global and weak definitions over local aliases at the same address
+            var order = new Integer[count];
+            for (var i = 0; count > i; i++) order[i] = i;
+            Arrays.sort(
+                    order,
+                    (a, b) -> {
+                        var c = Long.compareUnsigned(starts[a], starts[b]);
+                        if (c != 0) return c;
+                        var local_a = bindings[a] == STB_LOCAL ? 1 : 0;
+                        var local_b = bindings[b] == STB_LOCAL ? 1 : 0;
+                        return local_a - local_b;
+                    });
+
+            var sortedStarts = new long[count];
+            var sortedSizes = new long[count];
+            var sortedNameOffsets = new int[count];
+            var unique = 0;
+            for (var index : order) {
+                if (unique > 0 && sortedStarts[unique - 1] == starts[index]) continue;
+                sortedStarts[unique] = starts[index];
+                sortedSizes[unique] = sizes[index];
+                sortedNameOffsets[unique++] = nameOffsets[index];
+            }
+            starts = Arrays.copyOf(sortedStarts, unique);
+            sizes = Arrays.copyOf(sortedSizes, unique);
+            nameOffsets = Arrays.copyOf(sortedNameOffsets, unique);
+            names = Arrays.copyOf(names, namesSize);
+            bindings = null;
+        }
+
+        @Override
+        public boolean visitSymbol(
+                byte[] name, int off, int len, long value, long size, int type, int binding) {
+            if (size == 0) return true;
+            if (type != STT_FUNC && type != STT_GNU_IFUNC && type != STT_OBJECT) {
+                if (type != STT_NOTYPE) return true;
+            }
+            if (count == starts.length) {
+                var capacity = Math.max(256, count * 2);
+                starts = Arrays.copyOf(starts, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+                bindings = Arrays.copyOf(bindings, capacity);
+            }
+            if (namesSize + len + 1 > names.length) {
+                names = Arrays.copyOf(names, Math.max(4096, (namesSize + len + 1) * 2));
+            }
+            System.arraycopy(name, off, names, namesSize, len);
+            starts[count] = value;
+            sizes[count] = size;
+            bindings[count] = binding;
+            nameOffsets[count++] = namesSize;
+            namesSize += len + 1;
+            return true;
+        }
+
+        int find(long address) {
+            int low = 0, high = starts.length - 1;
+            while (high >= low) {
+                var mid = (low + high) >>> 1;
+                if (Long.compareUnsigned(starts[mid], address) > 0) {
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            if (high < 0 || address - starts[high] >= sizes[high]) return -1;
+            return high;
+        }
+
+        String getName(int symbol) {
+            var off = nameOffsets[symbol];
+            var end = off;
+            while (names[end] != 0) end++;
+            return new String(names, off, end - off);
+        }
+    }
+}
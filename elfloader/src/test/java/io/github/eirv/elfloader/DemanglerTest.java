@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DemanglerTest {
+    /** Symbols and their demangled form as printed by GNU c++filt. */
+    private static final String[][] SYMBOLS = {
+        {
+            "_ZN3art9ArtMethod6InvokeEPNS_6ThreadEPjjPNS_6JValueEPKc",
+            "art::ArtMethod::Invoke(art::Thread*, unsigned int*, unsigned int, art::JValue*, "
+                    + "char const*)"
+        },
+        {"_ZN3art6Thread7CurrentEv", "art::Thread::Current()"},
+        {"_ZNK3art9ArtMethod12PrettyMethodEb", "art::ArtMethod::PrettyMethod(bool) const"},
+        {"_ZN3art6ThreadC1ERKS0_", "art::Thread::Thread(art::Thread const&)"},
+        {"_ZN3art6ThreadD2Ev", "art::Thread::~Thread()"},
+        {
+            "_ZN7android14AndroidRuntime5startEPKcRKNS_6VectorINS_7String8EEEb",
+            "android::AndroidRuntime::start(char const*, "
+                    + "android::Vector<android::String8> const&, bool)"
+        },
+        {
+            "_ZNSt3__112basic_stringIcNS_11char_traitsIcEENS_9allocatorIcEEE6appendEPKcm",
+            "std::__1::basic_string<char, std::__1::char_traits<char>, "
+                    + "std::__1::allocator<char> >::append(char const*, unsigned long)"
+        },
+        {
+            "_ZNSt6vectorIiSaIiEE9push_backERKi",
+            "std::vector<int, std::allocator<int> >::push_back(int const&)"
+        },
+        {"_ZNKSt8functionIFviEEclEi", "std::function<void (int)>::operator()(int) const"},
+        {"_ZN1XplERKS_", "X::operator+(X const&)"},
+        {"_ZN1XcviEv", "X::operator int()"},
+        {"_ZN1XltIiEEbRKS_", "bool X::operator< <int>(X const&)"},
+        {"_ZN1XlsIiEEvT_", "void X::operator<< <int>(int)"},
+        {"_Z1fPFivE", "f(int (*)())"},
+        {"_Z1fPA10_i", "f(int (*) [10])"},
+        {"_Z1fRA4_Ki", "f(int const (&) [4])"},
+        {"_Z1fM1Xi", "f(int X::*)"},
+        {"_Z1fM1XFviE", "f(void (X::*)(int))"},
+        {"_Z1fM1XKFviE", "f(void (X::*)(int) const)"},
+        {"_Z1fM1XKFviRE", "f(void (X::*)(int) const &)"},
+        {"_Z1fM1XVKFvvOE", "f(void (X::*)() const volatile &&)"},
+        {"_Z1fIiEvT_", "void f<int>(int)"},
+        {"_Z1fIJiRlEEvDpRKT_", "void f<int, long&>(int const&, long& const&)"},
+        {"_Z1fIJiRlEEvDpOT_", "void f<int, long&>(int&&, long&)"},
+        {"_Z1fIJicEEvDpPFvT_E", "void f<int, char>(void (*)(int), void (*)(char))"},
+        {"_Z6createIJEEvDpOT_", "void create<>()"},
+        {"_Z12CallOnceImplIRFvvEJEEvOT_DpOT0_", "void CallOnceImpl<void (&)()>(void (&)())"},
+        {
+            "_Z10AppendImplIRKN4absl4CordEEvOT_",
+            "void AppendImpl<absl::Cord const&>(absl::Cord const&)"
+        },
+        {"_Z1fIRiEvOT_", "void f<int&>(int&)"},
+        {"_Z1fIOiEvRT_", "void f<int&&>(int&)"},
+        {"_Z1fIOiEvOT_", "void f<int&&>(int&&)"},
+        {"_Z1fIKiEvPKT_", "void f<int const>(int const*)"},
+        {"_ZN1AUt_D1Ev", "A::{unnamed type#1}::~A()"},
+        {"_ZZ1fvENKUlvE_clEv", "f()::{lambda()#1}::operator()() const"},
+        {"_ZZ1fIiEvvE1x", "f<int>()::x"},
+        {"_ZGVZ1fvE1x", "guard variable for f()::x"},
+        {"_ZZN1B1fI1AEEvT_E1x", "B::f<A>(A)::x"},
+        {"_ZTV1X", "vtable for X"},
+        {"_ZTI1X", "typeinfo for X"},
+        {"_ZTS1X", "typeinfo name for X"},
+        {"_ZThn8_N1X1fEv", "non-virtual thunk to X::f()"},
+        {"_ZTv0_n24_N1X1fEv", "virtual thunk to X::f()"},
+        {"_ZN12_GLOBAL__N_13fooEv", "(anonymous namespace)::foo()"},
+        {"_ZN1N1fB5cxx11Ev", "N::f[abi:cxx11]()"},
+        {"_Z1fIiLi3EEvv", "void f<int, 3>()"},
+        {"_Z1fILb1EEvv", "void f<true>()"},
+        {"_Z1fILj4EEvv", "void f<4u>()"},
+        {"_Z3fooIcEvv.cold", "void foo<char>() [clone .cold]"},
+        {"_Z3foov.isra.0.constprop.1", "foo() [clone .isra.0] [clone .constprop.1]"},
+    };
+
+    private static final String[] MALFORMED = {
+        "main", "_Z", "_ZN3art6Thread", "_Z1fILi3E", "_Z1fS0_",
+    };
+
+    @Test
+    public void demangle() {
+        for (var entry : SYMBOLS) {
+            assertEquals(entry[0], entry[1], Demangler.demangle(entry[0]));
+        }
+    }
+
+    @Test
+    public void demangleOldLinkerPrefix() {
+        assertEquals(
+                "__dl_ prefix",
+                "soinfo::call_constructors()",
+                Demangler.demangle("__dl__ZN6soinfo17call_constructorsEv"));
+    }
+
+    @Test
+    public void rejectMalformed() {
+        for (var symbol : MALFORMED) {
+            assertNull(symbol, Demangler.demangle(symbol));
+        }
+    }
+
+    @Test
+    public void rejectDeepNesting() {
+        assertEquals("f(int**)", Demangler.demangle("_Z1fPPi"));
+        // Would overflow the stack without a depth limit
+        assertNull("20000 pointers", Demangler.demangle("_Z1f" + "P".repeat(20000) + "i"));
+        assertNull("20000 local names", Demangler.demangle("_Z" + "Z".repeat(20000) + "1fvE1xE"));
+    }
+
+    @Test
+    public void demangleName() {
+        assertArrayEquals(
+                new String[] {
+                    "art::ArtMethod::PrettyMethod", "art::ArtMethod::PrettyMethod(bool) const"
+                },
+                Demangler.demangleName("_ZNK3art9ArtMethod12PrettyMethodEb"));
+        // No return type in the signature
+        assertArrayEquals(
+                new String[] {"f<int&>", "f<int&>(int&)"}, Demangler.demangleName("_Z1fIRiEvOT_"));
+        assertArrayEquals(
+                new String[] {"foo [clone .cold]", "foo() [clone .cold]"},
+                Demangler.demangleName("_Z3foov.cold"));
+    }
+}
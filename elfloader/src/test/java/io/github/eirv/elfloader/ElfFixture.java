@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Builds minimal little-endian ELF64 images for tests. Sections are laid out after the ELF
+ * header in the order they are added, followed by the section header table and the program
+ * headers, if any. An image with program headers is loaded whole at address 0 by a single
+ * {@code PT_LOAD} segment, so virtual addresses equal file offsets.
+ */
+final class ElfFixture {
+    static final int SHT_SYMTAB = 2;
+    static final int SHT_STRTAB = 3;
+    static final int SHT_RELA = 4;
+    static final int SHT_DYNAMIC = 6;
+    static final int SHT_NOTE = 7;
+    static final int SHT_DYNSYM = 11;
+    static final int SHT_ANDROID_RELA = 0x60000002;
+    static final int SHF_COMPRESSED = 0x800;
+    static final int ELFCOMPRESS_ZLIB = 1;
+    static final int ELFCOMPRESS_ZSTD = 2;
+    static final int STT_OBJECT = 1;
+    static final int STT_FUNC = 2;
+    static final int STB_LOCAL = 0;
+    static final int STB_GLOBAL = 1;
+    static final int PT_LOAD = 1;
+    static final int PT_DYNAMIC = 2;
+    static final int PT_NOTE = 4;
+    static final int DT_PLTRELSZ = 2;
+    static final int DT_STRTAB = 5;
+    static final int DT_SYMTAB = 6;
+    static final int DT_RELA = 7;
+    static final int DT_RELASZ = 8;
+    static final int DT_PLTREL = 20;
+    static final int DT_JMPREL = 23;
+    static final int DT_ANDROID_RELA = 0x60000011;
+    static final int DT_ANDROID_RELASZ = 0x60000012;
+    static final int EM_AARCH64 = 183;
+
+    private static final int EHDR_SIZE = 64;
+    private static final int SHDR_SIZE = 64;
+    private static final int PHDR_SIZE = 56;
+
+    private final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    private final ArrayList<long[]> sections = new ArrayList<>();
+    private final ArrayList<long[]> segments = new ArrayList<>();
+
+    /**
+     * Adds a section holding {@code data} and returns its index. {@code link} is the index of
+     * the associated section, e.g. the string table of a symbol table.
+     */
+    int addSection(int type, int flags, byte[] data, int link, int entsize) {
+        while (contents.size() % 8 != 0) contents.write(0);
+        var offset = EHDR_SIZE + contents.size();
+        contents.write(data, 0, data.length);
+        sections.add(new long[] {type, flags, offset, data.length, link, entsize});
+        return sections.size();
+    }
+
+    /** Returns the file offset of section {@code index}, which is also its virtual address. */
+    long offsetOf(int index) {
+        return sections.get(index - 1)[2];
+    }
+
+    /** Adds a program header of {@code type} covering section {@code index}. */
+    void addSegment(int type, int index) {
+        var section = sections.get(index - 1);
+        segments.add(new long[] {type, section[2], section[3]});
+    }
+
+    ByteBuffer build() {
+        while (contents.size() % 8 != 0) contents.write(0);
+        var shoff = EHDR_SIZE + contents.size();
+        var shnum = sections.size() + 1;
+        var phoff = shoff + shnum * SHDR_SIZE;
+        var phnum = segments.isEmpty() ? 0 : segments.size() + 1;
+        var size = phoff + phnum * PHDR_SIZE;
+        var elf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        elf.putInt(0x464c457f).put((byte) 2).put((byte) 1).put((byte) 1);
+        elf.position(16);
+        elf.putShort((short) 3).putShort((short) EM_AARCH64).putInt(1);
+        elf.putLong(0).putLong(phnum != 0 ? phoff : 0).putLong(shoff);
+        elf.putInt(0).putShort((short) EHDR_SIZE);
+        elf.putShort((short) PHDR_SIZE).putShort((short) phnum);
+        elf.putShort((short) SHDR_SIZE).putShort((short) shnum).putShort((short) 0);
+        elf.put(contents.toByteArray());
+
+        elf.position(shoff + SHDR_SIZE);
+        for (var section : sections) {
+            elf.putInt(0).putInt((int) section[0]).putLong(section[1]).putLong(0);
+            elf.putLong(section[2]).putLong(section[3]);
+            elf.putInt((int) section[4]).putInt(0).putLong(8).putLong(section[5]);
+        }
+        if (phnum != 0) {
+            // PF_R | PF_W
+            elf.putInt(PT_LOAD).putInt(6).putLong(0).putLong(0).putLong(0);
+            elf.putLong(size).putLong(size).putLong(0x1000);
+            for (var segment : segments) {
+                elf.putInt((int) segment[0]).putInt(6).putLong(segment[1]).putLong(segment[1]);
+                elf.putLong(segment[1]).putLong(segment[2]).putLong(segment[2]).putLong(8);
+            }
+        }
+        return elf.position(0);
+    }
+
+    /** Returns {@code data} as the contents of an {@code SHF_COMPRESSED} section. */
+    static byte[] compress(byte[] data, int type) {
+        var deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        var out = new ByteArrayOutputStream();
+        var chdr = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        chdr.putInt(type).putInt(0).putLong(data.length).putLong(8);
+        out.write(chdr.array(), 0, 24);
+        var buffer = new byte[256];
+        while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /** A string table under construction. */
+    static final class Strings {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Strings() {
+            bytes.write(0);
+        }
+
+        /** Appends {@code name} and returns its offset. */
+        int add(String name) {
+            var offset = bytes.size();
+            var b = name.getBytes();
+            bytes.write(b, 0, b.length);
+            bytes.write(0);
+            return offset;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /** A 64-bit symbol table under construction, starting with the null symbol. */
+    static final class Symbols {
+        private final ByteBuffer table;
+
+        Symbols(int capacity) {
+            table = ByteBuffer.allocate((capacity + 1) * 24).order(ByteOrder.LITTLE_ENDIAN);
+            table.position(24);
+        }
+
+        /** Adds a symbol defined in section 1, or an undefined one if {@code defined} is false. */
+        Symbols add(int name, int type, int binding, long value, long size, boolean defined) {
+            table.putInt(name).put((byte) (binding << 4 | type)).put((byte) 0);
+            table.putShort((short) (defined ? 1 : 0)).putLong(value).putLong(size);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            var bytes = new byte[table.position()];
+            System.arraycopy(table.array(), 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+
+    /** A dynamic section under construction, terminated by {@code DT_NULL}. */
+    static final class Dynamic {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Dynamic add(long tag, long value) {
+            var entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putLong(tag).putLong(value);
+            bytes.write(entry.array(), 0, 16);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            add(0, 0);
+            return bytes.toByteArray();
+        }
+    }
+
+    /** An Android packed relocation table under construction, starting with {@code APS2}. */
+    static final class Packed {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Packed() {
+            bytes.write('A');
+            bytes.write('P');
+            bytes.write('S');
+            bytes.write('2');
+        }
+
+        /** Appends each of {@code values} as an SLEB128. */
+        Packed add(long... values) {
+            for (var value : values) {
+                while (true) {
+                    var b = (int) value & 0x7f;
+                    value >>= 7;
+                    if (value == 0 && (b & 0x40) == 0 || value == -1 && (b & 0x40) != 0) {
+                        bytes.write(b);
+                        break;
+                    }
+                    bytes.write(b | 0x80);
+                }
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2024 Eirv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.eirv.elfloader;
+
+import static io.github.eirv.elfloader.ElfFixture.DT_ANDROID_RELA;
+import static io.github.eirv.elfloader.ElfFixture.DT_ANDROID_RELASZ;
+import static io.github.eirv.elfloader.ElfFixture.DT_JMPREL;
+import static io.github.eirv.elfloader.ElfFixture.DT_PLTREL;
+import static io.github.eirv.elfloader.ElfFixture.DT_PLTRELSZ;
+import static io.github.eirv.elfloader.ElfFixture.DT_RELA;
+import static io.github.eirv.elfloader.ElfFixture.DT_STRTAB;
+import static io.github.eirv.elfloader.ElfFixture.DT_SYMTAB;
+import static io.github.eirv.elfloader.ElfFixture.ELFCOMPRESS_ZLIB;
+import static io.github.eirv.elfloader.ElfFixture.ELFCOMPRESS_ZSTD;
+import static io.github.eirv.elfloader.ElfFixture.EM_AARCH64;
+import static io.github.eirv.elfloader.ElfFixture.PT_DYNAMIC;
+import static io.github.eirv.elfloader.ElfFixture.PT_NOTE;
+import static io.github.eirv.elfloader.ElfFixture.SHF_COMPRESSED;
+import static io.github.eirv.elfloader.ElfFixture.SHT_ANDROID_RELA;
+import static io.github.eirv.elfloader.ElfFixture.SHT_DYNAMIC;
+import static io.github.eirv.elfloader.ElfFixture.SHT_DYNSYM;
+import static io.github.eirv.elfloader.ElfFixture.SHT_NOTE;
+import static io.github.eirv.elfloader.ElfFixture.SHT_RELA;
+import static io.github.eirv.elfloader.ElfFixture.SHT_STRTAB;
+import static io.github.eirv.elfloader.ElfFixture.SHT_SYMTAB;
+import static io.github.eirv.elfloader.ElfFixture.STB_GLOBAL;
+import static io.github.eirv.elfloader.ElfFixture.STB_LOCAL;
+import static io.github.eirv.elfloader.ElfFixture.STT_FUNC;
+import static io.github.eirv.elfloader.ElfFixture.STT_OBJECT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ElfImgTest {
+    /** More than one chunk of a compressed symbol table. */
+    private static final int SYMBOL_COUNT = 1000;
+
+    private static final int R_AARCH64_GLOB_DAT = 1025;
+    private static final int R_AARCH64_JUMP_SLOT = 1026;
+    private static final int R_AARCH64_RELATIVE = 1027;
+
+    /** Builds an image with a {@code .symtab} of {@link #SYMBOL_COUNT} symbols and more. */
+    private static ByteBuffer symtabImage(int symFlags, int strFlags, int compression) {
+        var strings = new ElfFixture.Strings();
+        var symbols = new ElfFixture.Symbols(SYMBOL_COUNT + 3);
+        for (var i = 0; SYMBOL_COUNT > i; i++) {
+            var binding = i % 3 == 0 ? STB_LOCAL : STB_GLOBAL;
+            var name = strings.add("function_" + i);
+            symbols.add(name, STT_FUNC, binding, 0x1000 + i * 16L, 16, true);
+        }
+        // A name in the tail of another one, as linkers merge suffixes
+        var name = strings.add("gnu_data");
+        symbols.add(name, STT_OBJECT, STB_GLOBAL, 0x200, 8, true);
+        symbols.add(name + 4, STT_OBJECT, STB_GLOBAL, 0x300, 8, true);
+        symbols.add(strings.add("undefined"), STT_FUNC, STB_GLOBAL, 0, 0, false);
+
+        var fixture = new ElfFixture();
+        var str = strings.toByteArray();
+        var sym = symbols.toByteArray();
+        var strtab =
+                fixture.addSection(
+                        SHT_STRTAB,
+                        strFlags,
+                        strFlags != 0 ? ElfFixture.compress(str, compression) : str,
+                        0,
+                        0);
+        fixture.addSection(
+                SHT_SYMTAB,
+                symFlags,
+                symFlags != 0 ? ElfFixture.compress(sym, compression) : sym,
+                strtab,
+                24);
+        return fixture.build();
+    }
+
+    /** Builds an image with a {@code .dynsym}, a build ID note and program headers. */
+    private static ByteBuffer dynsymImage() {
+        var strings = new ElfFixture.Strings();
+        var symbols = new ElfFixture.Symbols(2);
+        symbols.add(strings.add("exported"), STT_FUNC, STB_GLOBAL, 0x1230, 16, true);
+        symbols.add(strings.add("imported"), STT_FUNC, STB_GLOBAL, 0, 0, false);
+        var note = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        // NT_GNU_BUILD_ID, owner "GNU"
+        note.putInt(4).putInt(4).putInt(3).putInt(0x00554e47);
+        note.put(new byte[] {(byte) 0xde, (byte) 0xad, (byte) 0xbe, (byte) 0xef});
+
+        var fixture = new ElfFixture();
+        var dynstr = fixture.addSection(SHT_STRTAB, 0, strings.toByteArray(), 0, 0);
+        fixture.addSection(SHT_DYNSYM, 0, symbols.toByteArray(), dynstr, 24);
+        fixture.addSegment(PT_NOTE, fixture.addSection(SHT_NOTE, 0, note.array(), 0, 0));
+        return fixture.build();
+    }
+
+    /** Returns the {@code r_info} of a 64-bit relocation. */
+    private static long info(int symbol, int type) {
+        return (long) symbol << 32 | type;
+    }
+
+    /**
+     * Builds an image importing {@code malloc}, {@code free}, {@code environ} and {@code abort},
+     * with {@code relocations} in a section of {@code type} as its only relocations, located by
+     * the dynamic tags {@code tag} and {@code sizeTag}.
+     */
+    private static ByteBuffer importImage(byte[] relocations, int type, int tag, int sizeTag) {
+        var strings = new ElfFixture.Strings();
+        var symbols = new ElfFixture.Symbols(4);
+        for (var name : new String[] {"malloc", "free", "environ", "abort"}) {
+            symbols.add(strings.add(name), STT_FUNC, STB_GLOBAL, 0, 0, false);
+        }
+
+        var fixture = new ElfFixture();
+        var dynstr = fixture.addSection(SHT_STRTAB, 0, strings.toByteArray(), 0, 0);
+        var dynsym = fixture.addSection(SHT_DYNSYM, 0, symbols.toByteArray(), dynstr, 24);
+        var rel = fixture.addSection(type, 0, relocations, dynsym, type == SHT_RELA ? 24 : 0);
+        var dynamic =
+                new ElfFixture.Dynamic()
+                        .add(DT_STRTAB, fixture.offsetOf(dynstr))
+                        .add(DT_SYMTAB, fixture.offsetOf(dynsym))
+                        .add(DT_PLTREL, DT_RELA)
+                        .add(tag, fixture.offsetOf(rel))
+                        .add(sizeTag, relocations.length);
+        var dyn = fixture.addSection(SHT_DYNAMIC, 0, dynamic.toByteArray(), dynstr, 16);
+        fixture.addSegment(PT_DYNAMIC, dyn);
+        return fixture.build();
+    }
+
+    private static Map<String, Long> expectedSymbols() {
+        var expected = new HashMap<String, Long>();
+        for (var i = 0; SYMBOL_COUNT > i; i++) expected.put("function_" + i, 0x1000 + i * 16L);
+        expected.put("gnu_data", 0x200L);
+        expected.put("data", 0x300L);
+        return expected;
+    }
+
+    private static int countVisited(ElfImg image) {
+        var count = new int[1];
+        image.visitSymbols(
+                (name, off, len, value, size, type, binding) -> {
+                    count[0]++;
+                    return true;
+                });
+        return count[0];
+    }
+
+    @Test
+    public void readRawSymbolTable() {
+        try (var image = new ElfImg(symtabImage(0, 0, 0), 0, true)) {
+            assertEquals(expectedSymbols(), image.getSymbols());
+            assertEquals(SYMBOL_COUNT + 2, countVisited(image));
+        }
+    }
+
+    @Test
+    public void readCompressedSymbolTables() {
+        int[][] variants = {
+            {SHF_COMPRESSED, 0}, {0, SHF_COMPRESSED}, {SHF_COMPRESSED, SHF_COMPRESSED},
+        };
+        for (var flags : variants) {
+            var message = "symtab " + flags[0] + ", strtab " + flags[1];
+            var elf = symtabImage(flags[0], flags[1], ELFCOMPRESS_ZLIB);
+            try (var image = new ElfImg(elf, 0, true)) {
+                assertEquals(message, expectedSymbols(), image.getSymbols());
+                assertEquals(message, SYMBOL_COUNT + 2, countVisited(image));
+            }
+        }
+    }
+
+    @Test
+    public void skipUnsupportedCompression() {
+        var elf = symtabImage(SHF_COMPRESSED, SHF_COMPRESSED, ELFCOMPRESS_ZSTD);
+        try (var image = new ElfImg(elf, 0, true)) {
+            assertTrue(image.getSymbols().isEmpty());
+        }
+    }
+
+    @Test
+    public void parseBufferAtPosition() {
+        var elf = dynsymImage();
+        var heap = ByteBuffer.allocate(elf.remaining() + 100);
+        heap.position(100);
+        heap.put(elf.duplicate()).position(100);
+        var direct = ByteBuffer.allocateDirect(elf.remaining());
+        direct.put(elf.duplicate()).flip();
+        for (var buffer : new ByteBuffer[] {elf, heap, direct}) {
+            var position = buffer.position();
+            try (var image = new ElfImg(buffer)) {
+                assertTrue(image.is64Bit());
+                assertEquals(EM_AARCH64, image.getMachine());
+                assertEquals("deadbeef", image.getBuildId());
+                assertEquals(0x1230L, image.getSymbolAddress("exported"));
+                assertEquals(0L, image.getSymbolAddress("imported"));
+            }
+            assertEquals(position, buffer.position());
+        }
+    }
+
+    @Test
+    public void relocateByBase() {
+        var base = 0x7000_0000_0000L;
+        var elf = dynsymImage();
+        var size = elf.remaining();
+        try (var image = new ElfImg(elf, base)) {
+            assertEquals(base, image.getBias());
+            assertEquals(base + 0x1230, image.getSymbolAddress("exported"));
+            var segments = image.getLoadSegments();
+            assertEquals(1, segments.length);
+            assertArrayEquals(new long[] {base, size, size, 6, 0}, segments[0]);
+        }
+    }
+
+    @Test
+    public void rejectMalformedImages() {
+        assertThrows(IllegalArgumentException.class, () -> new ElfImg(ByteBuffer.allocate(64)));
+        var truncated = dynsymImage();
+        truncated.limit(truncated.limit() - 1);
+        assertThrows(IllegalArgumentException.class, () -> new ElfImg(truncated));
+        // e_phentsize smaller than an Elf64_Phdr
+        var phentsize = dynsymImage();
+        phentsize.putShort(54, (short) 8);
+        assertThrows(IllegalArgumentException.class, () -> new ElfImg(phentsize));
+        // sh_link of .dynsym past the section headers
+        var link = dynsymImage();
+        link.putInt((int) link.getLong(40) + 2 * 64 + 40, 9);
+        assertThrows(IllegalArgumentException.class, () -> new ElfImg(link));
+    }
+
+    @Test
+    public void indexPackedRelocations() {
+        var packed =
+                new ElfFixture.Packed()
+                        // Relocation count, initial r_offset
+                        .add(11, 0x2000)
+                        // Grouped by info, offset delta and addend: size, flags, delta, info,
+                        // addend
+                        .add(3, 15, 8, info(1, R_AARCH64_JUMP_SLOT), 0)
+                        // Nothing grouped: size, flags, then offset delta, info and addend each
+                        .add(3, 8)
+                        .add(8, info(2, R_AARCH64_GLOB_DAT), 0)
+                        .add(8, info(4, R_AARCH64_JUMP_SLOT), 0)
+                        .add(8, info(3, R_AARCH64_GLOB_DAT), 16)
+                        // Grouped by offset delta without addends, which resets the addend
+                        .add(2, 2, 0x10)
+                        .add(info(0, R_AARCH64_RELATIVE))
+                        .add(info(2, R_AARCH64_JUMP_SLOT))
+                        // Grouped by info and addend: size, flags, info, addend, offset deltas
+                        .add(2, 13, info(3, R_AARCH64_GLOB_DAT), 8)
+                        .add(8, 8)
+                        // The grouped addend carries over from the previous group
+                        .add(1, 13, info(3, R_AARCH64_GLOB_DAT), -8)
+                        .add(8)
+                        .toByteArray();
+        var elf = importImage(packed, SHT_ANDROID_RELA, DT_ANDROID_RELA, DT_ANDROID_RELASZ);
+        var base = 0x7000_0000_0000L;
+        try (var image = new ElfImg(elf, base)) {
+            var malloc = image.getImportSlots("malloc");
+            assertArrayEquals(new long[] {base + 0x2008, base + 0x2010, base + 0x2018}, malloc);
+            var free = image.getImportSlots("free");
+            assertArrayEquals(new long[] {base + 0x2020, base + 0x2050}, free);
+            assertArrayEquals(new long[] {base + 0x2028}, image.getImportSlots("abort"));
+            // The slots with an addend at 0x2030, 0x2058 and 0x2060 point into environ
+            assertArrayEquals(new long[] {base + 0x2068}, image.getImportSlots("environ"));
+            assertEquals(4, image.getImports().size());
+        }
+    }
+
+    @Test
+    public void indexImportsAcrossImages() {
+        var rela = ByteBuffer.allocate(3 * 24).order(ByteOrder.LITTLE_ENDIAN);
+        rela.putLong(0x3000).putLong(info(4, R_AARCH64_JUMP_SLOT)).putLong(0);
+        rela.putLong(0x3008).putLong(info(1, R_AARCH64_JUMP_SLOT)).putLong(0);
+        rela.putLong(0x3010).putLong(info(3, R_AARCH64_GLOB_DAT)).putLong(8);
+        var plt = importImage(rela.array(), SHT_RELA, DT_JMPREL, DT_PLTRELSZ);
+        var packed =
+                new ElfFixture.Packed()
+                        .add(1, 0x2000)
+                        .add(1, 8)
+                        .add(8, info(1, R_AARCH64_GLOB_DAT), 0)
+                        .toByteArray();
+        var elf = importImage(packed, SHT_ANDROID_RELA, DT_ANDROID_RELA, DT_ANDROID_RELASZ);
+        try (var first = new ElfImg(plt);
+                var second = new ElfImg(elf)) {
+            var slots = ElfImg.getImportSlots(List.of(first, second), "malloc", "abort", "free");
+            assertArrayEquals(new long[] {0x3008, 0x2008}, slots[0]);
+            assertArrayEquals(new long[] {0x3000}, slots[1]);
+            assertArrayEquals(new long[0], slots[2]);
+            assertArrayEquals(new long[0], first.getImportSlots("environ"));
+
+            // Callers get copies of the index
+            first.getImportSlots("malloc")[0] = 0;
+            first.getImports().get("malloc")[0] = 0;
+            assertArrayEquals(new long[] {0x3008}, first.getImportSlots("malloc"));
+        }
+    }
+
+    @Test
+    public void visitSymbolAttributes() {
+        var visited = new HashMap<String, long[]>();
+        try (var image = new ElfImg(symtabImage(0, 0, 0), 0, true, SymbolFilter.NONE)) {
+            image.visitSymbols(
+                    (name, off, len, value, size, type, binding) -> {
+                        var attributes = new long[] {value, size, type, binding};
+                        visited.put(new String(name, off, len), attributes);
+                        return true;
+                    });
+        }
+        assertEquals(SYMBOL_COUNT + 2, visited.size());
+        assertFalse(visited.containsKey("undefined"));
+        assertArrayEquals(new long[] {0x1000, 16, STT_FUNC, STB_LOCAL}, visited.get("function_0"));
+        assertArrayEquals(new long[] {0x1010, 16, STT_FUNC, STB_GLOBAL}, visited.get("function_1"));
+        assertArrayEquals(new long[] {0x300, 8, STT_OBJECT, STB_GLOBAL}, visited.get("data"));
+    }
+
+    @Test
+    public void stopVisitingEarly() {
+        var count = new int[1];
+        try (var image = new ElfImg(symtabImage(0, 0, 0), 0, true)) {
+            image.visitSymbols((name, off, len, value, size, type, binding) -> ++count[0] < 5);
+        }
+        assertEquals(5, count[0]);
+    }
+
+    @Test
+    public void retainFilteredSymbols() {
+        var filter = SymbolFilter.prefix("function_99", "gnu_");
+        try (var image = new ElfImg(symtabImage(0, 0, 0), 0, true, filter)) {
+            var expected = new HashMap<String, Long>();
+            expected.put("function_99", 0x1000 + 99 * 16L);
+            for (var i = 990; SYMBOL_COUNT > i; i++) {
+                expected.put("function_" + i, 0x1000 + i * 16L);
+            }
+            expected.put("gnu_data", 0x200L);
+            assertEquals(expected, image.getSymbols());
+            // Visiting is not filtered
+            assertEquals(SYMBOL_COUNT + 2, countVisited(image));
+        }
+        try (var image = new ElfImg(symtabImage(0, 0, 0), 0, true, SymbolFilter.NONE)) {
+            assertTrue(image.isEmpty());
+            assertEquals(SYMBOL_COUNT + 2, countVisited(image));
+        }
+    }
+
+    @Test
+    public void closeReleasesTables() {
+        var image = new ElfImg(dynsymImage());
+        image.close();
+        assertTrue(image.isEmpty());
+        assertEquals(0, countVisited(image));
+        assertArrayEquals(new long[0], image.getImportSlots("imported"));
+        // Closing twice is harmless
+        image.close();
+    }
+}
@@ -12,8 +12,12 @@ public final class Unsafe {
 
     public native int pageSize();
 
+    public native byte getByte(long address);
+
     public native void putByte(long address, byte x);
 
+    public native short getShort(long address);
+
     public native int getInt(long address);
 
     public native int getInt(Object obj, long offset);